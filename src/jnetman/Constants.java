@@ -12,5 +12,6 @@ public class Constants {
 	static public final String SESS_AUTODISCOVERY_FILENAME = "autodiscovery.properties";
 	static public final String SNMP_PROPERTIES_FILENAME = "snmp.properties";
 	static public final String SESS_PROPERTIES_FILENAME = "session.properties";
+	static public final String SNMP_ENGINES_CACHE_FILENAME = "engines.cache";
 
 }
@@ -1,9 +1,12 @@
 package jnetman.network;
 
+import jnetman.snmp.CircuitBreaker;
+import jnetman.snmp.CircuitOpenException;
 import jnetman.snmp.MIB;
 import jnetman.snmp.MibHelper;
 import jnetman.snmp.SnmpClient;
 import jnetman.snmp.SnmpErrorException;
+import jnetman.snmp.SnmpFutures;
 import jnetman.snmp.SnmpHelper;
 import jnetman.snmp.SnmpSyntaxException;
 import jnetman.snmp.TimeoutException;
@@ -50,34 +53,55 @@ public abstract class Agent {
 
 	public boolean isResponding() {
 		VariableBinding vb = null;
+		CircuitBreaker circuitBreaker = snmpClient.getCircuitBreaker();
 		try {
-			vb = this.snmpClient.get(MIB.sysUptime);
+			// the outcome is reported to the circuit breaker below, only once
+			// the content of the response has been checked
+			vb = SnmpFutures.join(this.snmpClient.probeAsync(MIB.sysUptime))[0];
 			SnmpSyntaxException.checkForExceptions(vb);
 			if (!vb.getOid().equals(MIB.sysUptime)) {
 				logger.debug("Snmp agent connectivity check FAILED! sysUpTime OID "
 						+ MIB.sysUptime
 						+ " was requested but agent returned a different OID "
 						+ vb.getOid());
+				circuitBreaker.onFailure();
+				return false;
+			} else if (!(vb.getVariable() instanceof TimeTicks)) {
+				logger.debug("Snmp agent connectivity check FAILED! sysUpTime is not a TimeTicks >> "
+						+ vb);
+				circuitBreaker.onFailure();
 				return false;
 			} else if (((TimeTicks) vb.getVariable()).toMilliseconds() <= 0) {
 				logger.debug("Snmp agent connectivity check FAILED! Illegale value for sysUptime = "
 						+ ((TimeTicks) vb.getVariable()).toLong());
+				circuitBreaker.onFailure();
 				return false;
 			}
 
+			// let the response cache see agent restarts
+			snmpHelper.getResponseCache().onSysUpTime(
+					((TimeTicks) vb.getVariable()).getValue());
+			circuitBreaker.onSuccess();
 			logger.debug("Snmp agent connectivity check PASSED, sysUpTime = "
 					+ ((TimeTicks) vb.getVariable()).toMilliseconds() + " > 0");
 			return true;
+		} catch (CircuitOpenException e) {
+			logger.debug("Snmp agent connectivity check skipped, agent not responding since last check");
+			return false;
 		} catch (TimeoutException e) {
 			logger.info("Snmp agent connectivity check failed due to request time out");
 			return false;
 		} catch (SnmpSyntaxException e) {
 			logger.info("Snmp agent connectivity check failed due to an SNMP syntax exception retrieving sysUpTime ("
 					+ vb.toString() + ")");
+			circuitBreaker.onFailure();
 			return false;
 		} catch (SnmpErrorException e) {
 			logger.info("Snmp agent connectivity check failed due to the following SNMP Error >> "
 					+ e.getMessage());
+			// an error response still proves the agent alive
+			if (e.getErrorStatus() >= 0)
+				circuitBreaker.onSuccess();
 			return false;
 		}
 	}
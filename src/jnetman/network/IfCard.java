@@ -16,6 +16,8 @@ public class IfCard {
 
 	private long nominalSpeed = -1;
 	private long peakSpeed = -1;
+	// MIB-II ifOperStatus, -1 if unknown
+	private int operStatus = -1;
 
 	protected IfCard(String name, Node node) {
 		this.name = name;
@@ -128,6 +130,22 @@ public class IfCard {
 		}
 	}
 
+	/**
+	 * Returns the last known operational status of the interface, as of
+	 * MIB-II ifOperStatus (1 = up, 2 = down, ...).
+	 * 
+	 * @return ifOperStatus value, -1 if unknown
+	 */
+	public int getOperStatus() {
+		return operStatus;
+	}
+
+	public void setOperStatus(int operStatus) {
+		if (operStatus != this.operStatus)
+			logger.debug("Operational status updated >> " + operStatus);
+		this.operStatus = operStatus;
+	}
+
 	public IfCardAgent getAgent() throws AddressException {
 		if (this.manager == null)
 			this.manager = new IfCardAgent(this);
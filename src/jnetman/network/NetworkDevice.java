@@ -10,6 +10,7 @@ public abstract class NetworkDevice {
 	private String name;
 	private Network network;
 	private InetAddress address;
+	private int maxInFlight = -1;
 	protected Logger logger;
 
 	protected NetworkDevice(String name, Network network) {
@@ -78,6 +79,31 @@ public abstract class NetworkDevice {
 		this.network = network;
 	}
 
+	/**
+	 * Returns the maximum number of SNMP requests that can be outstanding at
+	 * the same time for this device.
+	 * 
+	 * @return the window for this device, -1 if the global MAX_IN_FLIGHT value
+	 *         is used
+	 */
+	public int getMaxInFlight() {
+		return this.maxInFlight;
+	}
+
+	/**
+	 * Overrides the global MAX_IN_FLIGHT value for this device. The value is
+	 * applied to agents created afterwards, use the RequestPipeline of the
+	 * SnmpClient to change it for an existing agent.
+	 * 
+	 * @param maxInFlight
+	 *            Maximum number of outstanding requests, -1 to use the global
+	 *            value
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		logger.debug("Max in-flight requests updated >> " + maxInFlight);
+	}
+
 	public String toString() {
 		if (this.address != null)
 			return this.getClass().getCanonicalName() + " " + name + " : "
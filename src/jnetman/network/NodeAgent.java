@@ -7,6 +7,9 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 import jnetman.session.SessionPref;
 import jnetman.snmp.MIB;
@@ -17,6 +20,8 @@ import jnetman.snmp.TimeoutException;
 
 import org.snmp4j.smi.OID;
 import org.snmp4j.smi.SMIConstants;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
 
 public class NodeAgent extends Agent {
 
@@ -48,8 +53,10 @@ public class NodeAgent extends Agent {
 
 		boolean changes = false;
 
-		Table ifTable = snmpHelper.getTable(MIB.IfTable);
-		Table ipAddrTable = snmpHelper.getTable(MIB.IpAddrTable);
+		Table ifTable = snmpHelper.getTable(MIB.IfTable, MIB.IfIndex,
+				MIB.IfDescr, MIB.IfType);
+		Table ipAddrTable = snmpHelper.getTable(MIB.IpAddrTable,
+				MIB.IpAdEntAddr, MIB.IpAdEntIfIndex, MIB.IpAdEntNetMask);
 
 		IfCard ifCard = null;
 		String name;
@@ -126,6 +133,88 @@ public class NodeAgent extends Agent {
 		return changes;
 	}
 
+	/**
+	 * Refreshes the interface card with the passed ifIndex only, e.g. after a
+	 * linkUp/linkDown trap, instead of walking the whole IfTable. The cached
+	 * responses about the interface are invalidated, then its ifDescr and
+	 * ifOperStatus are retrieved with a single GET.
+	 * 
+	 * @param ifIndex
+	 *            MIB-II ifIndex of the interface
+	 * @return Future completed with the refreshed IfCard, null if the node
+	 *         has no IfCard named as the interface, or exceptionally with a
+	 *         SnmpSyntaxException if the agent has no such interface
+	 */
+	public CompletableFuture<IfCard> refreshIfCardAsync(final int ifIndex) {
+		final OID[] oids = new OID[] { new OID(MIB.IfDescr).append(ifIndex),
+				new OID(MIB.IfOperStatus).append(ifIndex) };
+		for (OID oid : oids)
+			snmpHelper.getResponseCache().invalidate(oid);
+
+		return snmpHelper.getVariableAsync(oids).thenApply(
+				new Function<Variable[], IfCard>() {
+					public IfCard apply(Variable[] vars) {
+						// e.g. noSuchInstance, the interface has been removed
+						for (int i = 0; i < vars.length; i++)
+							if (vars[i].isException()
+									|| vars[i].getSyntax() == SMIConstants.SYNTAX_NULL)
+								throw new CompletionException(
+										new SnmpSyntaxException(
+												new VariableBinding(oids[i],
+														vars[i])));
+						String name = vars[0].toString();
+						IfCard ifCard = node.getInterfaceCard(name);
+						if (ifCard == null) {
+							logger.debug("No interface card named " + name
+									+ " (ifIndex " + ifIndex + ")");
+							return null;
+						}
+						try {
+							ifCard.getAgent().ifIndex = ifIndex;
+						} catch (AddressException e) {
+							// we don't care
+						}
+						ifCard.setOperStatus(vars[1].toInt());
+						logger.debug("Interface refreshed >> " + name
+								+ ", ifOperStatus = " + vars[1]);
+						return ifCard;
+					}
+				});
+	}
+
+	/**
+	 * Returns the interface card whose ifIndex is already known to be the
+	 * passed one, without querying the agent.
+	 * 
+	 * @return the IfCard, null if none
+	 */
+	public IfCard getIfCardByIfIndex(int ifIndex) {
+		for (IfCard ifCard : node.getIfCards())
+			try {
+				if (ifCard.getAgent().ifIndex == ifIndex)
+					return ifCard;
+			} catch (AddressException e) {
+				// we don't care
+			}
+		return null;
+	}
+
+	/**
+	 * Forgets what may have changed with a restart of the agent, e.g. after a
+	 * coldStart trap: the cached responses and the ifIndex of the interface
+	 * cards, which are looked up again when needed.
+	 */
+	public void onAgentRestart() {
+		logger.debug("Agent restarted, cached responses and ifIndexes discarded");
+		snmpHelper.getResponseCache().clear();
+		for (IfCard ifCard : node.getIfCards())
+			try {
+				ifCard.getAgent().ifIndex = -1;
+			} catch (AddressException e) {
+				// we don't care
+			}
+	}
+
 	public long getIpOutNoRoutes() throws TimeoutException, SnmpErrorException,
 			SnmpSyntaxException {
 		return snmpHelper.getLong(MIB.IpOutNoRoutes);
@@ -0,0 +1,304 @@
+package jnetman.network;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jnetman.session.SessionPref;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs per-Node and per-IfCard tasks concurrently over the whole network.
+ * Tasks can freely use the blocking API of the agents (SnmpClient.get, walk,
+ * IfCardAgent.getCurrentBitrate, ...) since each one runs on its own virtual
+ * thread: a full sweep of the network scales with I/O latency rather than
+ * with the number of threads.
+ *
+ * At most maxConcurrency tasks run at the same time, and at most
+ * maxPerDevice of them for the same Node: the tasks over the limit of their
+ * Node wait in a queue of the Node, without holding a thread. On JVMs without
+ * virtual threads a fixed pool of maxConcurrency platform threads is used
+ * instead.
+ */
+public class PollingExecutor {
+
+	static Logger logger = Logger.getLogger("network.pollingExecutor");
+
+	/**
+	 * A task to run against a single Node.
+	 */
+	public interface NodeTask<T> {
+		T run(Node node) throws Exception;
+	}
+
+	/**
+	 * A task to run against a single IfCard.
+	 */
+	public interface IfCardTask<T> {
+		T run(IfCard ifCard) throws Exception;
+	}
+
+	private final ExecutorService executor;
+	private final Semaphore global;
+	private final int maxConcurrency;
+	private final int maxPerDevice;
+	private final ConcurrentHashMap<Node, DeviceQueue> perDevice = new ConcurrentHashMap<Node, DeviceQueue>();
+	private final boolean virtual;
+
+	/**
+	 * Creates a new executor using POLLING_MAX_CONCURRENCY and
+	 * POLLING_MAX_PER_DEVICE from the session properties.
+	 */
+	public PollingExecutor() {
+		this(SessionPref.getPollingMaxConcurrency(), SessionPref
+				.getPollingMaxPerDevice());
+	}
+
+	/**
+	 * @param maxConcurrency
+	 *            maximum number of tasks running at the same time
+	 * @param maxPerDevice
+	 *            maximum number of tasks running at the same time for the
+	 *            same Node
+	 */
+	public PollingExecutor(int maxConcurrency, int maxPerDevice) {
+		this.maxConcurrency = Math.max(1, maxConcurrency);
+		this.global = new Semaphore(this.maxConcurrency);
+		this.maxPerDevice = Math.max(1, maxPerDevice);
+		ExecutorService virtualExecutor = newVirtualThreadExecutor();
+		if (virtualExecutor != null) {
+			this.executor = virtualExecutor;
+			this.virtual = true;
+		} else {
+			this.executor = Executors.newFixedThreadPool(this.maxConcurrency,
+					new ThreadFactory() {
+						private final AtomicInteger n = new AtomicInteger();
+
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "Polling-"
+									+ n.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			this.virtual = false;
+		}
+		logger.debug("New polling executor created, maxConcurrency = "
+				+ maxConcurrency + ", maxPerDevice = " + maxPerDevice
+				+ (virtual ? ", virtual threads" : ", platform threads"));
+	}
+
+	/**
+	 * Virtual threads are looked up by reflection so that the framework can
+	 * still run on JVMs older than Java 21.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method m = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if tasks run on virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Submits a task for the passed node.
+	 *
+	 * @return Future completed with the result of the task
+	 */
+	public <T> CompletableFuture<T> submit(final Node node,
+			final NodeTask<T> task) {
+		return execute(node, new Callable<T>() {
+			public T call() throws Exception {
+				return task.run(node);
+			}
+		});
+	}
+
+	/**
+	 * Submits a task for the passed interface card, the limit per device is
+	 * shared with the other tasks of its node.
+	 *
+	 * @return Future completed with the result of the task
+	 */
+	public <T> CompletableFuture<T> submit(final IfCard ifCard,
+			final IfCardTask<T> task) {
+		return execute(ifCard.getNode(), new Callable<T>() {
+			public T call() throws Exception {
+				return task.run(ifCard);
+			}
+		});
+	}
+
+	/**
+	 * Runs the task for every node of the network.
+	 *
+	 * @return map of the futures of each node
+	 */
+	public <T> Map<Node, CompletableFuture<T>> forEachNode(Network network,
+			NodeTask<T> task) {
+		Map<Node, CompletableFuture<T>> futures = new HashMap<Node, CompletableFuture<T>>();
+		for (Node node : network.getNodes())
+			futures.put(node, submit(node, task));
+		return futures;
+	}
+
+	/**
+	 * Runs the task for every interface card of every node of the network.
+	 *
+	 * @return map of the futures of each interface card
+	 */
+	public <T> Map<IfCard, CompletableFuture<T>> forEachIfCard(
+			Network network, IfCardTask<T> task) {
+		Map<IfCard, CompletableFuture<T>> futures = new HashMap<IfCard, CompletableFuture<T>>();
+		for (Node node : network.getNodes())
+			for (IfCard ifCard : node.getIfCards())
+				futures.put(ifCard, submit(ifCard, task));
+		return futures;
+	}
+
+	private <T> CompletableFuture<T> execute(Node node, Callable<T> task) {
+		PollingTask<T> pollingTask = new PollingTask<T>(node, task,
+				getDeviceQueue(node));
+		// the device slot is taken before submitting, so that a task waiting
+		// for its device never holds a thread of the pool
+		if (pollingTask.device.acquire(pollingTask))
+			start(pollingTask);
+		return pollingTask.future;
+	}
+
+	private void start(PollingTask<?> task) {
+		while (task != null) {
+			try {
+				executor.execute(task);
+				return;
+			} catch (RejectedExecutionException e) {
+				// shut down, the queued tasks of the device are failed too
+				task.future.completeExceptionally(e);
+				task = task.device.release();
+			}
+		}
+	}
+
+	private DeviceQueue getDeviceQueue(Node node) {
+		DeviceQueue q = perDevice.get(node);
+		if (q == null) {
+			DeviceQueue newQueue = new DeviceQueue(maxPerDevice);
+			q = perDevice.putIfAbsent(node, newQueue);
+			if (q == null)
+				q = newQueue;
+		}
+		return q;
+	}
+
+	/**
+	 * @return number of tasks currently running
+	 */
+	public int getRunningCount() {
+		return maxConcurrency - global.availablePermits();
+	}
+
+	/**
+	 * Stops accepting new tasks, running ones are completed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * A task waiting for, or holding, a slot of its device.
+	 */
+	private class PollingTask<T> implements Runnable {
+		final Node node;
+		final Callable<T> task;
+		final DeviceQueue device;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		PollingTask(Node node, Callable<T> task, DeviceQueue device) {
+			this.node = node;
+			this.task = task;
+			this.device = device;
+		}
+
+		public void run() {
+			try {
+				global.acquire();
+				try {
+					future.complete(task.call());
+				} finally {
+					global.release();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				future.completeExceptionally(e);
+			} catch (Throwable e) {
+				logger.debug("Polling task for " + node.getName()
+						+ " failed >> " + e);
+				future.completeExceptionally(e);
+			} finally {
+				start(device.release());
+			}
+		}
+	}
+
+	/**
+	 * Tasks of a node: at most max of them are submitted to the executor at
+	 * the same time, the others wait here in order.
+	 */
+	private static class DeviceQueue {
+		private final int max;
+		private final Queue<PollingTask<?>> waiting = new ArrayDeque<PollingTask<?>>();
+		private int running;
+
+		DeviceQueue(int max) {
+			this.max = max;
+		}
+
+		/**
+		 * @return true if the task took a slot and can be submitted, false if
+		 *         it has been queued
+		 */
+		synchronized boolean acquire(PollingTask<?> task) {
+			if (running < max) {
+				running++;
+				return true;
+			}
+			waiting.add(task);
+			return false;
+		}
+
+		/**
+		 * Frees the slot of a completed task, or hands it to the next queued
+		 * one.
+		 *
+		 * @return the queued task to submit, null if none
+		 */
+		synchronized PollingTask<?> release() {
+			PollingTask<?> next = waiting.poll();
+			if (next == null)
+				running--;
+			return next;
+		}
+	}
+
+}
@@ -0,0 +1,231 @@
+package jnetman.network;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import jnetman.snmp.AggregatedTrap;
+import jnetman.snmp.AggregatedTrapListener;
+import jnetman.snmp.MIB;
+import jnetman.snmp.SnmpFutures;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Keeps the state of the network up to date from the traps, refreshing only
+ * what a trap tells has changed instead of rediscovering the whole network
+ * periodically:
+ *
+ * linkUp/linkDown: the interface with the ifIndex carried by the trap is
+ * updated, straight from the ifOperStatus of the trap when the interface is
+ * already known, else with a single GET of its ifDescr and ifOperStatus;
+ *
+ * coldStart/warmStart: the cached responses and the ifIndexes of the node
+ * are discarded, they are looked up again when needed.
+ *
+ * Register it with SnmpTrapReceiver.addAggregatedTrapListener, so that a
+ * flapping link triggers a single refresh per aggregation window. Only the
+ * async API of the agents is used, the aggregator thread is never blocked.
+ */
+public class TrapRefresher implements AggregatedTrapListener {
+
+	static Logger logger = Logger.getLogger("network.trapRefresher");
+
+	/*
+	 * Minimum time between two rebuilds of the index, and time an unknown
+	 * source is remembered: most traps from unmanaged sources do not trigger
+	 * a rebuild.
+	 */
+	private static final long MIN_REBUILD_INTERVAL_MILLIS = 5000;
+	private static final long UNKNOWN_SOURCE_MILLIS = 60000;
+	private static final int MAX_UNKNOWN_SOURCES = 10000;
+
+	private final Network network;
+	// address of the nodes and of their interfaces -> node, replaced as a
+	// whole when rebuilt
+	private volatile Map<InetAddress, Node> nodesByAddress = new HashMap<InetAddress, Node>();
+	// unknown source -> time until which it is not looked up again
+	private final ConcurrentHashMap<InetAddress, Long> unknownSources = new ConcurrentHashMap<InetAddress, Long>();
+	private long lastRebuildMillis;
+
+	private final AtomicLong refreshed = new AtomicLong();
+	private final AtomicLong refreshFailures = new AtomicLong();
+	private final AtomicLong updatedFromTrap = new AtomicLong();
+	private final AtomicLong restarts = new AtomicLong();
+	private final AtomicLong unmatched = new AtomicLong();
+
+	public TrapRefresher(Network network) {
+		this.network = network;
+	}
+
+	public void onAggregatedTraps(List<AggregatedTrap> traps) {
+		for (AggregatedTrap trap : traps) {
+			OID trapOID = trap.getTrapOID();
+			if (trapOID == null)
+				continue;
+			boolean link = trapOID.equals(MIB.LinkUp)
+					|| trapOID.equals(MIB.LinkDown);
+			boolean restart = trapOID.equals(MIB.ColdStart)
+					|| trapOID.equals(MIB.WarmStart);
+			if (!link && !restart)
+				continue;
+
+			Node node = findNode(trap);
+			if (node == null) {
+				unmatched.incrementAndGet();
+				logger.debug("No node for trap >> " + trap);
+				continue;
+			}
+			try {
+				if (link)
+					onLinkTrap(node, trap);
+				else {
+					node.getAgent().onAgentRestart();
+					restarts.incrementAndGet();
+				}
+			} catch (AddressException e) {
+				logger.error("Unable to refresh " + node.getName(), e);
+			}
+		}
+	}
+
+	private void onLinkTrap(Node node, AggregatedTrap trap)
+			throws AddressException {
+		int ifIndex = -1;
+		int operStatus = -1;
+		for (VariableBinding vb : trap.getTrap().getPDU()
+				.getVariableBindings()) {
+			if (vb.getOid().startsWith(MIB.IfIndex))
+				ifIndex = vb.getVariable().toInt();
+			else if (vb.getOid().startsWith(MIB.IfOperStatus))
+				operStatus = vb.getVariable().toInt();
+		}
+		if (ifIndex < 0) {
+			unmatched.incrementAndGet();
+			logger.debug("Link trap without ifIndex >> " + trap);
+			return;
+		}
+
+		NodeAgent agent = node.getAgent();
+		IfCard ifCard = agent.getIfCardByIfIndex(ifIndex);
+		// a flapping link may have changed again within the window, the
+		// status carried by the first trap is reliable only if alone
+		if (ifCard != null && operStatus >= 0 && trap.getCount() == 1) {
+			ifCard.setOperStatus(operStatus);
+			updatedFromTrap.incrementAndGet();
+			return;
+		}
+		final String name = node.getName();
+		final int index = ifIndex;
+		agent.refreshIfCardAsync(ifIndex).whenComplete(
+				new BiConsumer<IfCard, Throwable>() {
+					public void accept(IfCard ifCard, Throwable ex) {
+						if (ex == null)
+							return;
+						refreshFailures.incrementAndGet();
+						logger.warn("Unable to refresh ifIndex " + index
+								+ " of " + name + " >> "
+								+ SnmpFutures.unwrap(ex));
+					}
+				});
+		refreshed.incrementAndGet();
+	}
+
+	/**
+	 * Finds the node that sent the trap, by the address of the node or of
+	 * one of its interfaces. The index is rebuilt when the address is
+	 * unknown, since nodes and interfaces may have been added in the
+	 * meantime, at most every MIN_REBUILD_INTERVAL_MILLIS. Unknown addresses
+	 * are remembered for UNKNOWN_SOURCE_MILLIS.
+	 */
+	private Node findNode(AggregatedTrap trap) {
+		if (!(trap.getSource() instanceof IpAddress))
+			return null;
+		InetAddress address = ((IpAddress) trap.getSource()).getInetAddress();
+		Node node = nodesByAddress.get(address);
+		if (node != null)
+			return node;
+
+		long now = System.currentTimeMillis();
+		Long until = unknownSources.get(address);
+		if (until != null && now < until)
+			return null;
+		rebuildIndex(now);
+		node = nodesByAddress.get(address);
+		if (node == null) {
+			if (unknownSources.size() >= MAX_UNKNOWN_SOURCES)
+				unknownSources.clear();
+			unknownSources.put(address, now + UNKNOWN_SOURCE_MILLIS);
+		}
+		return node;
+	}
+
+	/**
+	 * Builds a new index and swaps it in, the lookups going on meanwhile
+	 * still see the old one.
+	 */
+	private synchronized void rebuildIndex(long now) {
+		if (now - lastRebuildMillis < MIN_REBUILD_INTERVAL_MILLIS)
+			return;
+		lastRebuildMillis = now;
+		Map<InetAddress, Node> index = new HashMap<InetAddress, Node>();
+		for (Node node : network.getNodes()) {
+			try {
+				index.put(node.getAddress(), node);
+			} catch (AddressException e) {
+				// we don't care
+			}
+			for (IfCard ifCard : node.getIfCards())
+				if (ifCard.getAddress() != null)
+					index.put(ifCard.getAddress(), node);
+		}
+		nodesByAddress = index;
+		// the new nodes are found at the next lookup
+		unknownSources.clear();
+	}
+
+	/**
+	 * @return number of interfaces refreshed with a GET
+	 */
+	public long getRefreshedCount() {
+		return refreshed.get();
+	}
+
+	/**
+	 * @return number of refreshes failed, e.g. timed out or for an ifIndex
+	 *         the agent does not have
+	 */
+	public long getRefreshFailuresCount() {
+		return refreshFailures.get();
+	}
+
+	/**
+	 * @return number of interfaces updated from the content of the trap only
+	 */
+	public long getUpdatedFromTrapCount() {
+		return updatedFromTrap.get();
+	}
+
+	/**
+	 * @return number of agent restarts handled
+	 */
+	public long getRestartsCount() {
+		return restarts.get();
+	}
+
+	/**
+	 * @return number of traps that could not be matched to a node or an
+	 *         interface
+	 */
+	public long getUnmatchedCount() {
+		return unmatched.get();
+	}
+
+}
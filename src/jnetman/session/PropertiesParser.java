@@ -68,6 +68,12 @@ public class PropertiesParser {
 		return false;
 	}
 
+	public boolean getBoolean(String key, boolean defaultValue) {
+		if (!hasProperty(key))
+			return defaultValue;
+		return getBoolean(key);
+	}
+
 	public int getInt(String key) {
 		try {
 			return Integer.valueOf(getString(key));
@@ -78,6 +84,12 @@ public class PropertiesParser {
 		return 0;
 	}
 
+	public int getInt(String key, int defaultValue) {
+		if (!hasProperty(key))
+			return defaultValue;
+		return getInt(key);
+	}
+
 	public long getLong(String key) {
 		try {
 			return Long.valueOf(getString(key));
@@ -88,6 +100,12 @@ public class PropertiesParser {
 		return 0;
 	}
 
+	public long getLong(String key, long defaultValue) {
+		if (!hasProperty(key))
+			return defaultValue;
+		return getLong(key);
+	}
+
 	public float getFloat(String key) {
 		try {
 			return Float.valueOf(getString(key));
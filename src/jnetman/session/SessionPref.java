@@ -25,4 +25,20 @@ public class SessionPref {
 	static public long getConvergenceTransientMillis() {
 		return prop.getLong("CONVERGENCE_TRNASIENT_MILLIS");
 	}
+
+	/**
+	 * Maximum number of polling tasks running at the same time over the
+	 * whole network. Defaults to 256.
+	 */
+	static public int getPollingMaxConcurrency() {
+		return prop.getInt("POLLING_MAX_CONCURRENCY", 256);
+	}
+
+	/**
+	 * Maximum number of polling tasks running at the same time for the same
+	 * node. Defaults to 4.
+	 */
+	static public int getPollingMaxPerDevice() {
+		return prop.getInt("POLLING_MAX_PER_DEVICE", 4);
+	}
 }
@@ -1,5 +1,6 @@
 package jnetman.session;
 
+import java.io.File;
 
 public class SnmpPref {
 
@@ -26,6 +27,14 @@ public class SnmpPref {
 		return prop.getInt("TIMEOUT");
 	}
 
+	/**
+	 * Lower bound for the timeout learned for each device from its round
+	 * trip time, TIMEOUT being the upper bound. Defaults to 50 ms.
+	 */
+	static public int getMinTimeout() {
+		return prop.getInt("MIN_TIMEOUT", 50);
+	}
+
 	static public int getMaxRetries() {
 		return prop.getInt("MAX_RETRIES");
 	}
@@ -34,4 +43,329 @@ public class SnmpPref {
 		return prop.getBoolean("ENABLE_SNMP4J_LOG");
 	}
 
+	/**
+	 * Number of shared SNMP sessions (UDP sockets and listener threads) over
+	 * which all the SnmpClients are multiplexed. Defaults to 1.
+	 */
+	static public int getTransportPoolSize() {
+		return prop.getInt("TRANSPORT_POOL_SIZE", 1);
+	}
+
+	/**
+	 * If true the shared sessions use NIO transports served by
+	 * NIO_EVENT_LOOPS threads instead of one blocking socket thread each.
+	 * Defaults to true.
+	 */
+	static public boolean isNioTransportEnabled() {
+		return prop.getBoolean("NIO_TRANSPORT_ENABLED", true);
+	}
+
+	/**
+	 * Number of event loop threads serving the NIO transports. Defaults to 1.
+	 */
+	static public int getNioEventLoops() {
+		return prop.getInt("NIO_EVENT_LOOPS", 1);
+	}
+
+	/**
+	 * Maximum number of idle direct buffers kept by the NIO transports.
+	 * Defaults to 16.
+	 */
+	static public int getBufferPoolSize() {
+		return prop.getInt("BUFFER_POOL_SIZE", 16);
+	}
+
+	/**
+	 * Maximum number of outstanding requests per device, further requests are
+	 * queued. Defaults to 1, can be overridden for a single NetworkDevice.
+	 */
+	static public int getMaxInFlight() {
+		return prop.getInt("MAX_IN_FLIGHT", 1);
+	}
+
+	/**
+	 * Max-repetitions value of the first GETBULK request sent to a device
+	 * during a walk. Defaults to 10.
+	 */
+	static public int getInitialMaxRepetitions() {
+		return prop.getInt("INITIAL_MAX_REPETITIONS", 10);
+	}
+
+	/**
+	 * Upper bound for the max-repetitions value learned for each device.
+	 * Defaults to 100.
+	 */
+	static public int getMaxRepetitions() {
+		return prop.getInt("MAX_REPETITIONS", 100);
+	}
+
+	/**
+	 * Initial estimate of the maximum SNMP message size accepted by the
+	 * agents, lowered per device on tooBig errors. Defaults to 1472 bytes
+	 * (UDP payload of an Ethernet frame).
+	 */
+	static public int getMaxMessageSize() {
+		return prop.getInt("MAX_MESSAGE_SIZE", 1472);
+	}
+
+	/**
+	 * Time window during which single-OID GETs sent to the same device are
+	 * merged in a single PDU. Defaults to 0, coalescing disabled.
+	 */
+	static public long getCoalesceWindowMillis() {
+		return prop.getLong("COALESCE_WINDOW_MILLIS", 0);
+	}
+
+	/**
+	 * If true the engine IDs and localized keys of the agents are persisted
+	 * in the session directory to skip discovery on the next start. Defaults
+	 * to true.
+	 */
+	static public boolean isEngineCacheEnabled() {
+		return prop.getBoolean("ENGINE_CACHE_ENABLED", true);
+	}
+
+	/**
+	 * Maximum PDUs per second sent to each device, 0 (default) for no limit.
+	 */
+	static public int getMaxPdusPerSecond() {
+		return prop.getInt("MAX_PDUS_PER_SECOND", 0);
+	}
+
+	/**
+	 * Maximum estimated bytes per second exchanged with each device, 0
+	 * (default) for no limit.
+	 */
+	static public int getMaxBytesPerSecond() {
+		return prop.getInt("MAX_BYTES_PER_SECOND", 0);
+	}
+
+	/**
+	 * Maximum PDUs per second sent to the whole network, 0 (default) for no
+	 * limit.
+	 */
+	static public int getGlobalMaxPdusPerSecond() {
+		return prop.getInt("GLOBAL_MAX_PDUS_PER_SECOND", 0);
+	}
+
+	/**
+	 * Maximum estimated bytes per second exchanged with the whole network, 0
+	 * (default) for no limit.
+	 */
+	static public int getGlobalMaxBytesPerSecond() {
+		return prop.getInt("GLOBAL_MAX_BYTES_PER_SECOND", 0);
+	}
+
+	/**
+	 * Consecutive requests without response after which the requests to a
+	 * device fail fast, 0 to never fail fast. Defaults to 3.
+	 */
+	static public int getCircuitFailureThreshold() {
+		return prop.getInt("CIRCUIT_FAILURE_THRESHOLD", 3);
+	}
+
+	/**
+	 * Millis before a device not responding is probed again, doubled at each
+	 * failed probe. Defaults to 1000.
+	 */
+	static public long getCircuitInitialBackoff() {
+		return prop.getLong("CIRCUIT_INITIAL_BACKOFF", 1000);
+	}
+
+	/**
+	 * Maximum millis between two probes of a device not responding. Defaults
+	 * to 60000.
+	 */
+	static public long getCircuitMaxBackoff() {
+		return prop.getLong("CIRCUIT_MAX_BACKOFF", 60000);
+	}
+
+	/**
+	 * Maximum number of responses cached for each device, 0 to disable the
+	 * cache. Defaults to 1000.
+	 */
+	static public int getResponseCacheSize() {
+		return prop.getInt("RESPONSE_CACHE_SIZE", 1000);
+	}
+
+	/**
+	 * Time to live in millis of the cached responses for slowly changing
+	 * objects (sysDescr, IfIndex, IfDescr, IfType, IpAddrTable). Defaults to
+	 * 300000.
+	 */
+	static public long getResponseCacheTtl() {
+		return prop.getLong("RESPONSE_CACHE_TTL", 300000);
+	}
+
+	/**
+	 * Number of slots of the ring buffer of the trap pipeline. Defaults to
+	 * 16384.
+	 */
+	static public int getTrapRingSize() {
+		return prop.getInt("TRAP_RING_SIZE", 16384);
+	}
+
+	/**
+	 * Bytes pre-allocated for each slot of the trap ring, larger traps grow
+	 * their slot. Defaults to 2048.
+	 */
+	static public int getTrapSlotSize() {
+		return prop.getInt("TRAP_SLOT_SIZE", 2048);
+	}
+
+	/**
+	 * Number of threads decoding, filtering and dispatching the traps.
+	 * Defaults to 2.
+	 */
+	static public int getTrapConsumerThreads() {
+		return prop.getInt("TRAP_CONSUMER_THREADS", 2);
+	}
+
+	/**
+	 * Maximum number of traps processed in a single batch. Defaults to 256.
+	 */
+	static public int getTrapBatchSize() {
+		return prop.getInt("TRAP_BATCH_SIZE", 256);
+	}
+
+	/**
+	 * What to do with a trap when the ring is full: DROP (default) or BLOCK
+	 * the receive thread until a slot is free.
+	 */
+	static public String getTrapOverflowPolicy() {
+		if (!prop.hasProperty("TRAP_OVERFLOW_POLICY"))
+			return "DROP";
+		return prop.getString("TRAP_OVERFLOW_POLICY");
+	}
+
+	/**
+	 * Millis without identical traps after which an aggregated trap is
+	 * emitted. Defaults to 2000.
+	 */
+	static public long getTrapAggregationWindow() {
+		return prop.getLong("TRAP_AGGREGATION_WINDOW", 2000);
+	}
+
+	/**
+	 * Maximum millis an aggregated trap is held since its first trap.
+	 * Defaults to 30000.
+	 */
+	static public long getTrapAggregationMaxAge() {
+		return prop.getLong("TRAP_AGGREGATION_MAX_AGE", 30000);
+	}
+
+	/**
+	 * Maximum number of aggregated traps held at the same time. Defaults to
+	 * 10000.
+	 */
+	static public int getTrapAggregationMaxGroups() {
+		return prop.getInt("TRAP_AGGREGATION_MAX_GROUPS", 10000);
+	}
+
+	/**
+	 * Number of sockets receiving the traps, bound to TRAPS_PORT with
+	 * SO_REUSEPORT, each one served by its own thread. Requires
+	 * NIO_TRANSPORT_ENABLED. Defaults to 1.
+	 */
+	static public int getTrapReceiverSockets() {
+		return prop.getInt("TRAP_RECEIVER_SOCKETS", 1);
+	}
+
+	/**
+	 * SO_RCVBUF in bytes of the sockets receiving the traps, 0 for the
+	 * default of the OS. Defaults to 0.
+	 */
+	static public int getTrapReceiveBufferSize() {
+		return prop.getInt("TRAP_RECEIVE_BUFFER_SIZE", 0);
+	}
+
+	/**
+	 * Directory of the trap journal, relative to the session directory if
+	 * not absolute. Traps are not journaled if missing.
+	 */
+	static public File getTrapJournalDir() {
+		if (!prop.hasProperty("TRAP_JOURNAL_DIR"))
+			return null;
+		File dir = new File(prop.getString("TRAP_JOURNAL_DIR"));
+		if (!dir.isAbsolute())
+			dir = new File(Session.getSessionDir(), dir.getPath());
+		return dir;
+	}
+
+	/**
+	 * Size in bytes of each segment file of the trap journal. Defaults to
+	 * 67108864 (64 MB).
+	 */
+	static public int getTrapJournalSegmentSize() {
+		return prop.getInt("TRAP_JOURNAL_SEGMENT_SIZE", 64 * 1024 * 1024);
+	}
+
+	/**
+	 * Number of segments of the trap journal kept on disk, the oldest ones
+	 * are deleted. Defaults to 16.
+	 */
+	static public int getTrapJournalMaxSegments() {
+		return prop.getInt("TRAP_JOURNAL_MAX_SEGMENTS", 16);
+	}
+
+	/**
+	 * Millis between two forces of the trap journal to disk, i.e. the
+	 * traps that may be lost if the host crashes. Defaults to 1000.
+	 */
+	static public long getTrapJournalSyncInterval() {
+		return prop.getLong("TRAP_JOURNAL_SYNC_INTERVAL", 1000);
+	}
+
+	/**
+	 * Addresses whose traps are the only ones accepted, separated by
+	 * spaces. All the sources are accepted if missing.
+	 */
+	static public String[] getTrapAllowedSources() {
+		return getList("TRAP_ALLOWED_SOURCES");
+	}
+
+	/**
+	 * Addresses whose traps are dropped, separated by spaces.
+	 */
+	static public String[] getTrapDeniedSources() {
+		return getList("TRAP_DENIED_SOURCES");
+	}
+
+	/**
+	 * Communities of the only v1/v2c traps accepted, separated by spaces.
+	 * All the communities are accepted if missing.
+	 */
+	static public String[] getTrapAllowedCommunities() {
+		return getList("TRAP_ALLOWED_COMMUNITIES");
+	}
+
+	/**
+	 * Engine IDs of the only v3 traps accepted, in hex (e.g.
+	 * 80:00:13:70:01:0a:00:00:01) and separated by spaces. All the engines
+	 * are accepted if missing.
+	 */
+	static public String[] getTrapAllowedEngineIDs() {
+		return getList("TRAP_ALLOWED_ENGINE_IDS");
+	}
+
+	/**
+	 * Trap OID prefixes of the traps dropped, separated by spaces.
+	 */
+	static public String[] getTrapDeniedOIDs() {
+		return getList("TRAP_DENIED_OIDS");
+	}
+
+	static private String[] getList(String key) {
+		if (!prop.hasProperty(key))
+			return new String[0];
+		return prop.getStringArray(key);
+	}
+
+	/**
+	 * Number of INFORMs remembered by the trap receiver to detect their
+	 * retransmissions. Defaults to 10000.
+	 */
+	static public int getTrapInformRecentSize() {
+		return prop.getInt("TRAP_INFORM_RECENT_SIZE", 10000);
+	}
 }
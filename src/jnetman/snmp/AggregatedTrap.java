@@ -0,0 +1,85 @@
+package jnetman.snmp;
+
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OID;
+
+/**
+ * Identical traps received within the aggregation window, reported as a
+ * single event by the TrapAggregator.
+ *
+ * Traps with different trap OIDs are never merged: a flapping link yields a
+ * linkDown and a linkUp aggregated trap, whose last traps tell which one
+ * came last.
+ */
+public class AggregatedTrap {
+
+	private final Trap first;
+	private final Trap last;
+	private final OID trapOID;
+	private final int count;
+	private final long firstMillis;
+	private final long lastMillis;
+
+	public AggregatedTrap(Trap first, Trap last, OID trapOID, int count,
+			long firstMillis, long lastMillis) {
+		this.first = first;
+		this.last = last;
+		this.trapOID = trapOID;
+		this.count = count;
+		this.firstMillis = firstMillis;
+		this.lastMillis = lastMillis;
+	}
+
+	/**
+	 * @return the first trap of the group, representative of all of them
+	 */
+	public Trap getTrap() {
+		return first;
+	}
+
+	/**
+	 * @return the last trap of the group, the same as getTrap if alone. Its
+	 *         variable bindings carry the latest state reported by the agent.
+	 */
+	public Trap getLastTrap() {
+		return last;
+	}
+
+	public Address getSource() {
+		return first.getSource();
+	}
+
+	/**
+	 * @return the trap OID shared by the traps of the group, null if missing
+	 */
+	public OID getTrapOID() {
+		return trapOID;
+	}
+
+	/**
+	 * @return number of traps of the group
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return time the first trap of the group was received, in millis
+	 */
+	public long getFirstMillis() {
+		return firstMillis;
+	}
+
+	/**
+	 * @return time the last trap of the group was received, in millis
+	 */
+	public long getLastMillis() {
+		return lastMillis;
+	}
+
+	public String toString() {
+		return count + " x " + trapOID + " from " + getSource() + " in "
+				+ (lastMillis - firstMillis) + " ms >> " + first.getPDU();
+	}
+
+}
@@ -0,0 +1,17 @@
+package jnetman.snmp;
+
+import java.util.List;
+
+/**
+ * Receives the aggregated traps emitted by the TrapAggregator, always from
+ * its own thread and in the order the groups were closed.
+ */
+public interface AggregatedTrapListener {
+
+	/**
+	 * @param traps
+	 *            aggregated traps whose window has closed, never empty
+	 */
+	void onAggregatedTraps(List<AggregatedTrap> traps);
+
+}
@@ -0,0 +1,34 @@
+package jnetman.snmp;
+
+import org.snmp4j.TimeoutModel;
+
+/**
+ * Exponential backoff for retransmissions: the n-th retry waits twice as
+ * long as the previous one, but never more than the passed upper bound.
+ */
+public class BackoffTimeoutModel implements TimeoutModel {
+
+	private final long maxRetryTimeout;
+
+	/**
+	 * @param maxRetryTimeout
+	 *            upper bound, in millis, for the timeout of a single retry
+	 */
+	public BackoffTimeoutModel(long maxRetryTimeout) {
+		this.maxRetryTimeout = maxRetryTimeout;
+	}
+
+	public long getRetryTimeout(int retryCount, int totalNumberOfRetries,
+			long targetTimeout) {
+		long timeout = targetTimeout << Math.min(retryCount, 20);
+		return Math.max(targetTimeout, Math.min(maxRetryTimeout, timeout));
+	}
+
+	public long getRequestTimeout(int totalNumberOfRetries, long targetTimeout) {
+		long total = 0;
+		for (int i = 0; i <= totalNumberOfRetries; i++)
+			total += getRetryTimeout(i, totalNumberOfRetries, targetTimeout);
+		return total;
+	}
+
+}
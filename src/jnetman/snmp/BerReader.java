@@ -0,0 +1,137 @@
+package jnetman.snmp;
+
+import java.nio.ByteBuffer;
+
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+
+/**
+ * Minimal BER reader over a ByteBuffer, for the partial parses of the raw
+ * messages. It uses absolute indexes so that the buffer is not modified.
+ * Malformed input raises a RuntimeException.
+ */
+final class BerReader {
+
+	static final int TAG_INTEGER = 0x02;
+	static final int TAG_OCTET_STRING = 0x04;
+	static final int TAG_OID = 0x06;
+	static final int TAG_SEQUENCE = 0x30;
+
+	private final ByteBuffer buf;
+	private int pos;
+	// end of the enclosing constructions, innermost last
+	private final int[] ends = new int[16];
+	private int depth;
+
+	BerReader(ByteBuffer buf) {
+		this.buf = buf;
+		this.pos = buf.position();
+		this.ends[0] = buf.limit();
+	}
+
+	/**
+	 * @return absolute index of the current position in the buffer
+	 */
+	int position() {
+		return pos;
+	}
+
+	int tag() {
+		return buf.get(pos) & 0xff;
+	}
+
+	boolean hasMore() {
+		return pos < ends[depth];
+	}
+
+	/**
+	 * Reads the tag and length at the current position, leaving the
+	 * position at the start of the content.
+	 *
+	 * @return length of the content
+	 */
+	private int header(int expectedTag) {
+		if (pos >= ends[depth] || tag() != expectedTag)
+			throw new IllegalArgumentException("BER tag "
+					+ Integer.toHexString(expectedTag) + " expected");
+		pos++;
+		int length = buf.get(pos++) & 0xff;
+		if (length > 0x7f) {
+			int n = length & 0x7f;
+			if (n > 3)
+				throw new IllegalArgumentException("BER length too long");
+			length = 0;
+			for (int i = 0; i < n; i++)
+				length = (length << 8) | (buf.get(pos++) & 0xff);
+		}
+		if (pos + length > ends[depth])
+			throw new IllegalArgumentException("BER length out of bounds");
+		return length;
+	}
+
+	/**
+	 * Moves into a constructed value.
+	 */
+	void enter(int tag) {
+		int length = header(tag);
+		ends[++depth] = pos + length;
+	}
+
+	/**
+	 * Moves past the end of the current constructed value.
+	 */
+	void leave() {
+		pos = ends[depth--];
+	}
+
+	void skip() {
+		if (pos >= ends[depth])
+			throw new IllegalArgumentException("BER value expected");
+		int length = header(tag());
+		pos += length;
+	}
+
+	long readInteger() {
+		int length = header(TAG_INTEGER);
+		if (length < 1 || length > 8)
+			throw new IllegalArgumentException("BER integer length");
+		long value = buf.get(pos++);
+		for (int i = 1; i < length; i++)
+			value = (value << 8) | (buf.get(pos++) & 0xff);
+		return value;
+	}
+
+	OctetString readOctetString() {
+		int length = header(TAG_OCTET_STRING);
+		byte[] value = new byte[length];
+		for (int i = 0; i < length; i++)
+			value[i] = buf.get(pos++);
+		return new OctetString(value);
+	}
+
+	OID readOID() {
+		int length = header(TAG_OID);
+		int end = pos + length;
+		if (length < 1)
+			throw new IllegalArgumentException("BER empty OID");
+		int[] value = new int[length + 1];
+		int n = 0;
+		while (pos < end) {
+			long sub = 0;
+			int b;
+			do {
+				b = buf.get(pos++) & 0xff;
+				sub = (sub << 7) | (b & 0x7f);
+			} while ((b & 0x80) != 0 && pos < end);
+			if (n == 0) {
+				// the first subidentifier encodes the first two
+				int first = (int) Math.min(2, sub / 40);
+				value[n++] = first;
+				value[n++] = (int) (sub - first * 40);
+			} else
+				value[n++] = (int) sub;
+		}
+		return new OID(value, 0, n);
+	}
+
+}
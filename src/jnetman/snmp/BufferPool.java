@@ -0,0 +1,74 @@
+package jnetman.snmp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct ByteBuffers of the same size, used by the NIO transports to
+ * receive and send datagrams without allocating a new array for each packet.
+ * A new buffer is allocated only when the pool is empty, buffers released
+ * when the pool is full are left to the garbage collector.
+ */
+public class BufferPool {
+
+	private final ArrayBlockingQueue<ByteBuffer> buffers;
+	private final int bufferSize;
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * @param bufferSize
+	 *            size of each buffer in bytes
+	 * @param maxPooled
+	 *            maximum number of idle buffers kept in the pool
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(1,
+				maxPooled));
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, allocating a new one if the pool
+	 * is empty.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buf = buffers.poll();
+		if (buf == null) {
+			allocated.incrementAndGet();
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		return buf;
+	}
+
+	/**
+	 * Gives the buffer back to the pool, it must not be used afterwards.
+	 */
+	public void release(ByteBuffer buf) {
+		buf.clear();
+		buffers.offer(buf);
+	}
+
+	/**
+	 * @return size of the buffers of this pool
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return number of buffers allocated since the creation of the pool, it
+	 *         stops growing once the pool has warmed up
+	 */
+	public long getAllocatedCount() {
+		return allocated.get();
+	}
+
+	/**
+	 * @return number of idle buffers in the pool
+	 */
+	public int getIdleCount() {
+		return buffers.size();
+	}
+
+}
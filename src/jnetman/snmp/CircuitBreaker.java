@@ -0,0 +1,150 @@
+package jnetman.snmp;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Health state of a device, used to fail fast the requests sent to an agent
+ * that stopped responding.
+ *
+ * A HEALTHY device becomes SUSPECT at the first request without response
+ * and OPEN after failureThreshold consecutive ones. While OPEN every request
+ * is refused; once the backoff has elapsed a single request is let through
+ * as a probe (HALF_OPEN). A response closes the circuit, another failure
+ * opens it again doubling the backoff, up to maxBackoffMillis. Any response,
+ * even an SNMP error, proves the agent alive. If the outcome of the probe is
+ * never reported (e.g. it failed locally), another probe is let through
+ * once the backoff has elapsed again.
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		HEALTHY, SUSPECT, OPEN, HALF_OPEN
+	}
+
+	private final Logger logger;
+	private final int failureThreshold;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+
+	private State state = State.HEALTHY;
+	private int failures;
+	private long backoffMillis;
+	private long openUntil;
+	private long probeUntil;
+	private long rejected;
+	private long opened;
+
+	/**
+	 * @param name
+	 *            name of the device, for logging
+	 * @param failureThreshold
+	 *            consecutive failures opening the circuit, 0 or less to never
+	 *            open it
+	 * @param initialBackoffMillis
+	 *            time before the first probe of an open circuit
+	 * @param maxBackoffMillis
+	 *            upper bound of the time between two probes
+	 */
+	public CircuitBreaker(String name, int failureThreshold,
+			long initialBackoffMillis, long maxBackoffMillis) {
+		this.logger = Logger.getLogger("snmp.circuitBreaker." + name);
+		this.failureThreshold = failureThreshold;
+		this.initialBackoffMillis = Math.max(1, initialBackoffMillis);
+		this.maxBackoffMillis = Math.max(this.initialBackoffMillis,
+				maxBackoffMillis);
+		this.backoffMillis = this.initialBackoffMillis;
+	}
+
+	/**
+	 * Called before sending a request.
+	 *
+	 * @return false if the request must fail fast
+	 */
+	public synchronized boolean allowRequest() {
+		switch (state) {
+		case OPEN:
+			if (System.currentTimeMillis() >= openUntil) {
+				state = State.HALF_OPEN;
+				probeUntil = System.currentTimeMillis() + backoffMillis;
+				logger.debug("Backoff elapsed, probing the agent");
+				return true;
+			}
+			rejected++;
+			return false;
+		case HALF_OPEN:
+			if (System.currentTimeMillis() >= probeUntil) {
+				// the outcome of the last probe has never been reported
+				probeUntil = System.currentTimeMillis() + backoffMillis;
+				logger.debug("No outcome for the last probe, probing again");
+				return true;
+			}
+			// a probe is already in flight
+			rejected++;
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Called when a response has been received.
+	 */
+	public synchronized void onSuccess() {
+		if (state != State.HEALTHY)
+			logger.info("Agent responding again, circuit closed");
+		state = State.HEALTHY;
+		failures = 0;
+		backoffMillis = initialBackoffMillis;
+	}
+
+	/**
+	 * Called when a request got no response, or the agent failed a health
+	 * check.
+	 */
+	public synchronized void onFailure() {
+		if (failureThreshold <= 0)
+			return;
+		failures++;
+		switch (state) {
+		case HALF_OPEN:
+			backoffMillis = Math.min(maxBackoffMillis, backoffMillis * 2);
+			open();
+			break;
+		case OPEN:
+			// a request sent before opening the circuit
+			break;
+		default:
+			if (failures >= failureThreshold)
+				open();
+			else
+				state = State.SUSPECT;
+		}
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openUntil = System.currentTimeMillis() + backoffMillis;
+		opened++;
+		logger.warn("Agent not responding, circuit open for " + backoffMillis
+				+ " ms");
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return number of requests refused while the circuit was open
+	 */
+	public synchronized long getRejectedCount() {
+		return rejected;
+	}
+
+	/**
+	 * @return number of times the circuit has been opened
+	 */
+	public synchronized long getOpenedCount() {
+		return opened;
+	}
+
+}
@@ -0,0 +1,23 @@
+package jnetman.snmp;
+
+import org.snmp4j.smi.Address;
+
+/**
+ * Thrown instead of sending a request to an agent whose circuit breaker is
+ * open. It is a TimeoutException so that callers treat it as a request that
+ * got no response, without waiting for the timeout.
+ */
+public class CircuitOpenException extends TimeoutException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(Address address) {
+		super(address);
+	}
+
+	public String getMessage() {
+		return "Request not sent, agent " + this.address.toString()
+				+ " is not responding";
+	}
+
+}
@@ -0,0 +1,266 @@
+package jnetman.snmp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import jnetman.Constants;
+import jnetman.session.SnmpPref;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.snmp4j.Snmp;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.security.AuthMD5;
+import org.snmp4j.security.PrivDES;
+import org.snmp4j.security.USM;
+import org.snmp4j.security.UsmTimeEntry;
+import org.snmp4j.security.UsmUserEntry;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.GenericAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+
+/**
+ * Cache of the authoritative engine IDs, engine boots/time and localized
+ * authentication and privacy keys of the agents, persisted in the session
+ * directory. When loaded at startup the engine discovery round trip and the
+ * password to key localization are skipped for every known agent.
+ *
+ * Each line of the file has the agent address as key and the following
+ * space separated fields as value: engine ID, engine boots, engine time,
+ * time of the snapshot in millis, localized auth key, localized priv key,
+ * digest of the credentials the keys were localized from (user, protocols
+ * and passphrases). Entries whose digest does not match the current
+ * credentials are dropped at load, e.g. after a password change.
+ */
+public class EngineCache {
+
+	static Logger logger = Logger.getLogger("snmp.engineCache");
+
+	private static final long SAVE_DELAY_MILLIS = 5000;
+	private static final OID AUTH_PROTOCOL = AuthMD5.ID;
+	private static final OID PRIV_PROTOCOL = PrivDES.ID;
+
+	private final File file;
+	private final USM usm;
+	private final OctetString userName;
+	private final String credentialsDigest;
+	private final Map<Address, OctetString> engineIDs = new ConcurrentHashMap<Address, OctetString>();
+	private Properties entries = new Properties();
+	private boolean saveScheduled;
+
+	/**
+	 * @param file
+	 *            File where the cache is persisted
+	 * @param usm
+	 *            USM shared by the SNMP sessions
+	 */
+	public EngineCache(File file, USM usm) {
+		this.file = file;
+		this.usm = usm;
+		this.userName = new OctetString(SnmpPref.getUser());
+		this.credentialsDigest = digest(SnmpPref.getUser(), AUTH_PROTOCOL,
+				SnmpPref.getPassword(), PRIV_PROTOCOL, SnmpPref.getPassword());
+	}
+
+	/**
+	 * Digest of the credentials the keys are localized from, so that the
+	 * passphrases themselves are not written to the cache.
+	 */
+	private static String digest(String user, OID authProtocol,
+			String authPassphrase, OID privProtocol, String privPassphrase) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			String text = user + "\0" + authProtocol + "\0" + authPassphrase
+					+ "\0" + privProtocol + "\0" + privPassphrase;
+			return new OctetString(md.digest(text.getBytes("UTF-8")))
+					.toHexString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the file of the cache inside the passed session directory.
+	 */
+	public static File getFile(File sessionDir) {
+		return new File(sessionDir, Constants.SNMP_ENGINES_CACHE_FILENAME);
+	}
+
+	/**
+	 * Loads the cache from file, adding the engine IDs to the MPv3 of the
+	 * passed sessions and the engine times and localized users to the USM.
+	 */
+	public synchronized void load(Snmp[] sessions) {
+		if (!file.exists())
+			return;
+		Properties prop = new Properties();
+		try {
+			FileInputStream is = new FileInputStream(file);
+			prop.load(is);
+			is.close();
+		} catch (IOException e) {
+			logger.warn("Unable to read the engine cache " + file, e);
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		int loaded = 0;
+		int stale = 0;
+		for (String key : prop.stringPropertyNames()) {
+			String[] fields = StringUtils.split(prop.getProperty(key));
+			if (fields.length != 7 || !fields[6].equals(credentialsDigest)) {
+				// older format or keys of other credentials, rediscovered
+				stale++;
+				continue;
+			}
+			try {
+				Address address = GenericAddress.parse("udp:" + key);
+				OctetString engineID = OctetString.fromHexString(fields[0]);
+				int boots = Integer.parseInt(fields[1]);
+				long elapsed = (now - Long.parseLong(fields[3])) / 1000;
+				int time = (int) Math.min(Integer.MAX_VALUE,
+						Integer.parseInt(fields[2]) + Math.max(0, elapsed));
+
+				for (Snmp snmp : sessions)
+					((MPv3) snmp.getMessageProcessingModel(MPv3.ID))
+							.addEngineID(address, engineID);
+				usm.getTimeTable().addEntry(
+						new UsmTimeEntry(engineID, boots, time));
+				usm.addLocalizedUser(engineID.getValue(), userName,
+						AUTH_PROTOCOL, OctetString.fromHexString(fields[4])
+								.getValue(), PRIV_PROTOCOL, OctetString
+								.fromHexString(fields[5]).getValue());
+
+				engineIDs.put(address, engineID);
+				entries.setProperty(key, prop.getProperty(key));
+				loaded++;
+			} catch (RuntimeException e) {
+				logger.warn("Illegal engine cache entry " + key, e);
+			}
+		}
+		logger.debug(loaded + " agents loaded from engine cache " + file
+				+ ", " + stale + " stale entries dropped");
+		if (stale > 0)
+			scheduleSave();
+	}
+
+	/**
+	 * Returns true if the engine of the agent at the passed address is known.
+	 */
+	public boolean contains(Address address) {
+		return engineIDs.containsKey(address);
+	}
+
+	/**
+	 * Stores the engine ID, time and localized keys of the agent at the
+	 * passed address, as learned by the passed session after a successful
+	 * request. The keys are refreshed even if the engine ID is already known.
+	 * The cache is saved to file shortly after.
+	 *
+	 * @return true if the agent is now in the cache
+	 */
+	public boolean learn(Snmp snmp, Address address) {
+		OctetString engineID = ((MPv3) snmp
+				.getMessageProcessingModel(MPv3.ID)).getEngineID(address);
+		if (engineID == null)
+			return false;
+
+		UsmUserEntry user = usm.getUserTable().getUser(engineID, userName);
+		UsmTimeEntry time = usm.getTimeTable().getTime(engineID);
+		if (user == null || user.getAuthenticationKey() == null
+				|| user.getPrivacyKey() == null || time == null)
+			return false;
+
+		String keys = new OctetString(user.getAuthenticationKey())
+				.toHexString()
+				+ " "
+				+ new OctetString(user.getPrivacyKey()).toHexString()
+				+ " " + credentialsDigest;
+		String value = engineID.toHexString() + " " + time.getEngineBoots()
+				+ " " + time.getLatestReceivedTime() + " "
+				+ System.currentTimeMillis() + " " + keys;
+
+		synchronized (this) {
+			String current = entries.getProperty(toKey(address));
+			if (engineID.equals(engineIDs.get(address)) && current != null
+					&& current.endsWith(keys))
+				return true;
+			engineIDs.put(address, engineID);
+			entries.setProperty(toKey(address), value);
+			scheduleSave();
+		}
+		logger.debug("Engine " + engineID + " of " + address + " cached");
+		return true;
+	}
+
+	private synchronized void scheduleSave() {
+		if (saveScheduled)
+			return;
+		saveScheduled = true;
+		SnmpScheduler.get().schedule(new Runnable() {
+			public void run() {
+				save();
+			}
+		}, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the cache to file. The file contains the localized keys and is
+	 * created readable by the owner only, before anything is written.
+	 */
+	public synchronized void save() {
+		saveScheduled = false;
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			createOwnerOnly(tmp);
+			FileOutputStream os = new FileOutputStream(tmp);
+			entries.store(os, Constants.PROJECT_NAME + " SNMPv3 engine cache");
+			os.close();
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					throw new IOException("Unable to rename " + tmp);
+			}
+			logger.debug("Engine cache saved, " + entries.size() + " agents");
+		} catch (IOException e) {
+			logger.warn("Unable to write the engine cache " + file, e);
+		}
+	}
+
+	private static void createOwnerOnly(File f) throws IOException {
+		Path path = f.toPath();
+		Files.deleteIfExists(path);
+		try {
+			Files.createFile(path, PosixFilePermissions
+					.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system
+			Files.createFile(path);
+			f.setReadable(false, false);
+			f.setReadable(true, true);
+			f.setWritable(false, false);
+			f.setWritable(true, true);
+		}
+	}
+
+	private static String toKey(Address address) {
+		// UdpAddress is printed as 10.0.0.1/161
+		return address.toString();
+	}
+
+}
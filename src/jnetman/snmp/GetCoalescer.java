@@ -0,0 +1,146 @@
+package jnetman.snmp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.PDU;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Merges single-OID GET requests sent to the same device within a short time
+ * window into a single PDU. The batch is sent when the window expires or as
+ * soon as the PDU is full, then the variable bindings of the response are
+ * handed back to each caller.
+ */
+public class GetCoalescer {
+
+	private final SnmpClient client;
+	private final long windowMillis;
+	private final Logger logger;
+
+	private List<Waiter> batch;
+	private int batchSize;
+	private ScheduledFuture<?> flushTask;
+
+	private long requests;
+	private long batches;
+
+	/**
+	 * @param client
+	 *            SnmpClient whose PduPacker is used to send the batches
+	 * @param windowMillis
+	 *            how long a GET can wait for others to join its batch
+	 */
+	public GetCoalescer(SnmpClient client, long windowMillis) {
+		this.client = client;
+		this.windowMillis = windowMillis;
+		this.logger = Logger.getLogger("snmp.getCoalescer."
+				+ client.getNetworkDevice().getName());
+	}
+
+	/**
+	 * Queues a GET for the passed OID in the current batch.
+	 *
+	 * @param oid
+	 *            OID of the request
+	 * @return Future completed with the variable binding of the response
+	 */
+	public CompletableFuture<VariableBinding> get(OID oid) {
+		Waiter waiter = new Waiter(new VariableBinding(new OID(oid)));
+		List<Waiter> full = null;
+
+		synchronized (this) {
+			requests++;
+			if (batch == null) {
+				final List<Waiter> newBatch = new ArrayList<Waiter>();
+				batch = newBatch;
+				batchSize = PduPacker.MESSAGE_OVERHEAD;
+				flushTask = SnmpScheduler.get().schedule(new Runnable() {
+					public void run() {
+						flush(newBatch);
+					}
+				}, windowMillis, TimeUnit.MILLISECONDS);
+			}
+			batch.add(waiter);
+			batchSize += PduPacker.estimateSize(waiter.vb, PDU.GET);
+
+			// the PDU is full, no need to wait for the window to expire
+			if (batchSize >= client.getPduPacker().getMaxMessageSize()) {
+				full = batch;
+				batch = null;
+				flushTask.cancel(false);
+			}
+		}
+
+		if (full != null)
+			send(full);
+		return waiter.future;
+	}
+
+	private void flush(List<Waiter> expired) {
+		synchronized (this) {
+			// already sent because full
+			if (batch != expired)
+				return;
+			batch = null;
+		}
+		send(expired);
+	}
+
+	private void send(final List<Waiter> waiters) {
+		synchronized (this) {
+			batches++;
+		}
+		VariableBinding[] vbs = new VariableBinding[waiters.size()];
+		for (int i = 0; i < vbs.length; i++)
+			vbs[i] = waiters.get(i).vb;
+
+		if (vbs.length > 1)
+			logger.trace(vbs.length + " GET requests coalesced in one batch");
+
+		client.getPduPacker().send(vbs, PDU.GET)
+				.whenComplete(new BiConsumer<VariableBinding[], Throwable>() {
+					public void accept(VariableBinding[] res, Throwable ex) {
+						for (int i = 0; i < waiters.size(); i++) {
+							if (ex != null)
+								waiters.get(i).future
+										.completeExceptionally(SnmpFutures
+												.unwrap(ex));
+							else
+								waiters.get(i).future.complete(res[i]);
+						}
+					}
+				});
+	}
+
+	/**
+	 * @return number of GET requests received
+	 */
+	public synchronized long getRequestsCount() {
+		return requests;
+	}
+
+	/**
+	 * @return number of PDUs batches sent, requests - batches is the number
+	 *         of round trips saved
+	 */
+	public synchronized long getBatchesCount() {
+		return batches;
+	}
+
+	private static class Waiter {
+		final VariableBinding vb;
+		final CompletableFuture<VariableBinding> future = new CompletableFuture<VariableBinding>();
+
+		Waiter(VariableBinding vb) {
+			this.vb = vb;
+		}
+	}
+
+}
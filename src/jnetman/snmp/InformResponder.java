@@ -0,0 +1,215 @@
+package jnetman.snmp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageException;
+import org.snmp4j.PDU;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.smi.Address;
+
+/**
+ * Acknowledges the INFORM requests as early as possible, so that the agents
+ * do not retransmit them while they wait in the trap pipeline:
+ *
+ * v2c INFORMs whose community has been accepted by the raw filter are
+ * acknowledged by the receive threads straight from the raw message. The
+ * Response carries the same request ID, error fields and variable bindings
+ * as the InformRequest (RFC 3416), so it is the message itself with the PDU
+ * tag rewritten, no decoding or encoding is needed;
+ *
+ * v3 INFORMs need the USM to be answered, they and the v2c ones not checked
+ * by the raw filter are acknowledged by the consumers as soon as they are
+ * decoded, before the filter and dispatch stages.
+ *
+ * Retransmissions whose acknowledgement got lost are acknowledged again but
+ * not processed twice: the last maxRecent (source, request ID) pairs are
+ * remembered.
+ */
+public class InformResponder {
+
+	static Logger logger = Logger.getLogger("snmp.informResponder");
+
+	/**
+	 * Returned by parseRequestID for the messages that are not v2c INFORMs.
+	 */
+	public static final long NOT_INFORM = Long.MIN_VALUE;
+
+	private static final int SNMP_VERSION_2C = 1;
+	private static final int TAG_INFORM = 0xa6;
+	private static final int TAG_RESPONSE = 0xa2;
+
+	private final LinkedHashMap<Key, Boolean> recent;
+
+	private long acknowledged;
+	private long duplicates;
+	private long errors;
+
+	/**
+	 * @param maxRecent
+	 *            number of INFORMs remembered to detect the retransmissions
+	 */
+	public InformResponder(final int maxRecent) {
+		this.recent = new LinkedHashMap<Key, Boolean>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+				return size() > maxRecent;
+			}
+		};
+	}
+
+	/**
+	 * Partial parse of a raw message.
+	 *
+	 * @return the request ID if the message is a v2c INFORM, else
+	 *         NOT_INFORM
+	 */
+	public long parseRequestID(ByteBuffer message) {
+		try {
+			BerReader ber = new BerReader(message);
+			ber.enter(BerReader.TAG_SEQUENCE);
+			if (ber.readInteger() != SNMP_VERSION_2C)
+				return NOT_INFORM;
+			ber.skip(); // community
+			if (ber.tag() != TAG_INFORM)
+				return NOT_INFORM;
+			ber.enter(TAG_INFORM);
+			return ber.readInteger();
+		} catch (RuntimeException e) {
+			// malformed, left to the decoder
+			return NOT_INFORM;
+		}
+	}
+
+	/**
+	 * Records an INFORM.
+	 *
+	 * @return true if it has already been received, i.e. it is a
+	 *         retransmission
+	 */
+	public synchronized boolean isDuplicate(Address source, long requestID) {
+		if (recent.put(new Key(source, requestID), Boolean.TRUE) == null)
+			return false;
+		duplicates++;
+		return true;
+	}
+
+	/**
+	 * Acknowledges a raw v2c INFORM, on the transport it was received from.
+	 *
+	 * @return false if the Response could not be sent
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public boolean acknowledge(TransportMapping transport, Address source,
+			ByteBuffer message, TransportStateReference tmStateReference) {
+		try {
+			BerReader ber = new BerReader(message);
+			ber.enter(BerReader.TAG_SEQUENCE);
+			ber.skip(); // version
+			ber.skip(); // community
+			int tagIndex = ber.position() - message.position();
+
+			byte[] response = new byte[message.remaining()];
+			message.duplicate().get(response);
+			response[tagIndex] = (byte) TAG_RESPONSE;
+			transport.sendMessage(source, response, tmStateReference);
+		} catch (IOException e) {
+			return onError(source, e);
+		} catch (RuntimeException e) {
+			return onError(source, e);
+		}
+		synchronized (this) {
+			acknowledged++;
+		}
+		return true;
+	}
+
+	/**
+	 * Acknowledges a decoded INFORM through the dispatcher that decoded it,
+	 * e.g. a v3 one that needs the USM.
+	 *
+	 * @return false if the Response could not be sent
+	 */
+	public boolean acknowledge(CommandResponderEvent event) {
+		PDU response = (PDU) event.getPDU().clone();
+		response.setType(PDU.RESPONSE);
+		response.setErrorStatus(PDU.noError);
+		response.setErrorIndex(0);
+		try {
+			event.getMessageDispatcher().returnResponsePdu(
+					event.getMessageProcessingModel(),
+					event.getSecurityModel(), event.getSecurityName(),
+					event.getSecurityLevel(), response,
+					event.getMaxSizeResponsePDU(), event.getStateReference(),
+					new StatusInformation());
+		} catch (MessageException e) {
+			return onError(event.getPeerAddress(), e);
+		}
+		synchronized (this) {
+			acknowledged++;
+		}
+		return true;
+	}
+
+	private synchronized boolean onError(Address source, Exception e) {
+		errors++;
+		logger.debug("Unable to acknowledge INFORM from " + source + " >> "
+				+ e);
+		return false;
+	}
+
+	/**
+	 * @return number of INFORMs acknowledged, retransmissions included
+	 */
+	public synchronized long getAcknowledgedCount() {
+		return acknowledged;
+	}
+
+	/**
+	 * @return number of retransmissions detected
+	 */
+	public synchronized long getDuplicatesCount() {
+		return duplicates;
+	}
+
+	/**
+	 * @return number of INFORMs that could not be acknowledged
+	 */
+	public synchronized long getErrorsCount() {
+		return errors;
+	}
+
+	public String toString() {
+		return "acknowledged = " + getAcknowledgedCount() + ", duplicates = "
+				+ getDuplicatesCount() + ", errors = " + getErrorsCount();
+	}
+
+	private static final class Key {
+		final Address source;
+		final long requestID;
+
+		Key(Address source, long requestID) {
+			this.source = source;
+			this.requestID = requestID;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return requestID == other.requestID && source.equals(other.source);
+		}
+
+		public int hashCode() {
+			return 31 * source.hashCode() + (int) (requestID ^ (requestID >>> 32));
+		}
+	}
+
+}
@@ -28,6 +28,7 @@ public final class MIB {
 	public static final OID IfIndex = new OID(IfTableEntry).append(1);
 	public static final OID IfDescr = new OID(IfTableEntry).append(2);
 	public static final OID IfType = new OID(IfTableEntry).append(3);
+	public static final OID IfOperStatus = new OID(IfTableEntry).append(8);
 	public static final OID IfInOctets = new OID(IfTableEntry).append(10);
 	public static final OID IfOutOctets = new OID(IfTableEntry).append(16);
 	/*
@@ -41,6 +42,16 @@ public final class MIB {
 	public static final OID IpAdEntIfIndex = new OID(IpAddrEntry).append(2);
 	public static final OID IpAdEntNetMask = new OID(IpAddrEntry).append(3);
 
+	/*
+	 * SNMPv2-MIB notifications
+	 */
+	public static final OID SnmpTrapOID = new OID(".1.3.6.1.6.3.1.1.4.1.0");
+	public static final OID SnmpTraps = new OID(".1.3.6.1.6.3.1.1.5");
+	public static final OID ColdStart = new OID(SnmpTraps).append(1);
+	public static final OID WarmStart = new OID(SnmpTraps).append(2);
+	public static final OID LinkDown = new OID(SnmpTraps).append(3);
+	public static final OID LinkUp = new OID(SnmpTraps).append(4);
+
 	/*
 	 * MIB-II Ip = new OID(.1.3.6.1.2.1.4
 	 */
@@ -0,0 +1,123 @@
+package jnetman.snmp;
+
+/**
+ * Learns the max-repetitions value to use in GETBULK requests sent to a
+ * device. The value is doubled while the agent returns all the repetitions
+ * requested, it is set to what the agent actually returned when the response
+ * has been truncated and it is halved on tooBig errors or timeouts.
+ */
+public class MaxRepetitionsEstimator {
+
+	private final int min;
+	private final int max;
+	private int value;
+	private long grown;
+	private long shrunk;
+
+	/**
+	 * @param initial
+	 *            Value used for the first request
+	 * @param max
+	 *            Upper bound for the learned value
+	 */
+	public MaxRepetitionsEstimator(int initial, int max) {
+		this.min = 1;
+		this.max = Math.max(1, max);
+		this.value = Math.max(min, Math.min(initial, this.max));
+	}
+
+	/**
+	 * @return the max-repetitions value to use for the next request
+	 */
+	public synchronized int get() {
+		return value;
+	}
+
+	/**
+	 * Called when a GETBULK response is received.
+	 *
+	 * @param requested
+	 *            max-repetitions value used for the request
+	 * @param returned
+	 *            number of repetitions actually returned by the agent
+	 */
+	public void onResponse(int requested, int returned) {
+		onResponse(requested, returned, 1);
+	}
+
+	/**
+	 * Called when a GETBULK response to a request of several columns is
+	 * received. The learned value is the number of variable bindings per
+	 * response, the request asked for value / columns repetitions of each
+	 * column.
+	 *
+	 * @param requested
+	 *            max-repetitions value used for the request
+	 * @param returned
+	 *            number of repetitions of each column actually returned by
+	 *            the agent
+	 * @param columns
+	 *            number of repeated variable bindings of the request
+	 */
+	public synchronized void onResponse(int requested, int returned,
+			int columns) {
+		if (returned >= requested) {
+			if (requested == Math.max(1, value / columns) && value < max) {
+				value = Math.min(max, value * 2);
+				grown++;
+			}
+		} else if (returned > 0 && returned * columns < value) {
+			// the agent truncated the response to fit its message size
+			value = Math.max(min, returned * columns);
+			shrunk++;
+		}
+	}
+
+	/**
+	 * Called when the agent answered with a tooBig error.
+	 *
+	 * @return true if the value has been reduced and the request can be
+	 *         retried, false if it was already at the minimum
+	 */
+	public synchronized boolean onTooBig() {
+		return shrink();
+	}
+
+	/**
+	 * Called when a GETBULK request timed out, large responses are more
+	 * likely to be lost or dropped by the agent.
+	 *
+	 * @return true if the value has been reduced, false if it was already at
+	 *         the minimum
+	 */
+	public synchronized boolean onTimeout() {
+		return shrink();
+	}
+
+	private boolean shrink() {
+		if (value <= min)
+			return false;
+		value = Math.max(min, value / 2);
+		shrunk++;
+		return true;
+	}
+
+	/**
+	 * @return how many times the value has been increased
+	 */
+	public synchronized long getGrownCount() {
+		return grown;
+	}
+
+	/**
+	 * @return how many times the value has been reduced
+	 */
+	public synchronized long getShrunkCount() {
+		return shrunk;
+	}
+
+	public synchronized String toString() {
+		return "maxRepetitions = " + value + " (max " + max + ")";
+	}
+
+}
@@ -1,5 +1,8 @@
 package jnetman.snmp;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
 import org.apache.log4j.Logger;
 import org.snmp4j.smi.VariableBinding;
 
@@ -19,13 +22,25 @@ public class MibHelper {
 
 	public int lookupIfIndex(String ifDescr) throws TimeoutException,
 			SnmpErrorException {
-		VariableBinding[] vbs = snmpClient.walk(MIB.IfDescr);
-		for (VariableBinding vb : vbs) {
-			if (vb.toValueString().equals(ifDescr))
-				return vb.getOid().last();
-		}
-		logger.error("IfIndex not found");
-		return -1;
+		return SnmpFutures.join(lookupIfIndexAsync(ifDescr));
+	}
+
+	/**
+	 * Asynchronous version of lookupIfIndex. Lookups of several interfaces of
+	 * the same device at the same time share a single walk of IfDescr.
+	 */
+	public CompletableFuture<Integer> lookupIfIndexAsync(final String ifDescr) {
+		return snmpHelper.walkAsync(MIB.IfDescr).thenApply(
+				new Function<VariableBinding[], Integer>() {
+					public Integer apply(VariableBinding[] vbs) {
+						for (VariableBinding vb : vbs) {
+							if (vb.toValueString().equals(ifDescr))
+								return vb.getOid().last();
+						}
+						logger.error("IfIndex not found");
+						return -1;
+					}
+				});
 	}
 
 }
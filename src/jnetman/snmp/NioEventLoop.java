@@ -0,0 +1,105 @@
+package jnetman.snmp;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Single thread serving any number of non-blocking channels through a
+ * Selector. Channels are registered with a Handler that is called from the
+ * loop thread each time the channel is readable.
+ */
+public class NioEventLoop implements Runnable {
+
+	static Logger logger = Logger.getLogger("snmp.nioEventLoop");
+
+	/**
+	 * Called from the loop thread when a channel is ready for reading.
+	 */
+	public interface Handler {
+		void onReadable(SelectionKey key);
+	}
+
+	private final Selector selector;
+	private final Thread thread;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean running = true;
+
+	/**
+	 * Creates the loop and starts its daemon thread.
+	 *
+	 * @param name
+	 *            name of the thread
+	 */
+	public NioEventLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Registers a channel for reading, the registration is performed by the
+	 * loop thread.
+	 */
+	public void register(final SelectableChannel channel, final Handler handler) {
+		tasks.add(new Runnable() {
+			public void run() {
+				try {
+					channel.register(selector, SelectionKey.OP_READ, handler);
+				} catch (IOException e) {
+					logger.error("Unable to register channel " + channel, e);
+				}
+			}
+		});
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid() && key.isReadable())
+						((Handler) key.attachment()).onReadable(key);
+				}
+			} catch (IOException e) {
+				logger.error("IOException in event loop " + thread.getName(),
+						e);
+			} catch (RuntimeException e) {
+				logger.error("Unexpected exception in event loop "
+						+ thread.getName(), e);
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.warn("IOException while closing selector", e);
+		}
+	}
+
+	/**
+	 * Stops the loop, channels are not closed.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+}
@@ -0,0 +1,226 @@
+package jnetman.snmp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.UdpTransportMapping;
+
+/**
+ * UDP transport mapping based on a non-blocking DatagramChannel served by a
+ * NioEventLoop, so that one or a few threads can serve the sockets of all
+ * the SNMP sessions. Datagrams are received and sent through direct buffers
+ * taken from a BufferPool.
+ *
+ * When the transport is used with a synchronous message dispatcher the
+ * received buffer is given back to the pool as soon as the dispatcher
+ * returns. Dispatchers that keep the buffer to process it later (e.g.
+ * MultiThreadedMessageDispatcher) need copyOnDispatch set to true.
+ */
+public class NioUdpTransportMapping extends UdpTransportMapping implements
+		NioEventLoop.Handler {
+
+	static Logger logger = Logger.getLogger("snmp.nioUdpTransportMapping");
+
+	/**
+	 * Maximum number of datagrams read in a row from the same socket, to keep
+	 * the other sockets of the loop served.
+	 */
+	private static final int MAX_READS_PER_WAKEUP = 64;
+
+	private final NioEventLoop eventLoop;
+	private final BufferPool bufferPool;
+	private final boolean copyOnDispatch;
+	private volatile DatagramChannel channel;
+	private int receiveBufferSize;
+	private boolean reusePort;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong sendDrops = new AtomicLong();
+
+	/**
+	 * @param udpAddress
+	 *            local address to bind, port 0 for an ephemeral port
+	 * @param eventLoop
+	 *            loop serving the socket
+	 * @param bufferPool
+	 *            pool of the receive and send buffers
+	 * @param copyOnDispatch
+	 *            true if the received message must be copied before being
+	 *            handed to the dispatcher
+	 */
+	public NioUdpTransportMapping(UdpAddress udpAddress,
+			NioEventLoop eventLoop, BufferPool bufferPool,
+			boolean copyOnDispatch) {
+		super(udpAddress);
+		this.eventLoop = eventLoop;
+		this.bufferPool = bufferPool;
+		this.copyOnDispatch = copyOnDispatch;
+		this.maxInboundMessageSize = bufferPool.getBufferSize();
+	}
+
+	/**
+	 * Sets SO_RCVBUF of the socket, to be called before listen.
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Sets SO_REUSEPORT on the socket, to be called before listen. Several
+	 * sockets can then be bound to the same address and port, the kernel
+	 * spreads the incoming datagrams among them by source address.
+	 */
+	public void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	public synchronized void listen() throws IOException {
+		if (channel != null)
+			throw new IllegalStateException("Transport already listening");
+		DatagramChannel ch = DatagramChannel.open();
+		try {
+			configure(ch);
+			ch.bind(new InetSocketAddress(udpAddress.getInetAddress(),
+					udpAddress.getPort()));
+		} catch (IOException e) {
+			ch.close();
+			throw e;
+		}
+		channel = ch;
+		channel.configureBlocking(false);
+		// the actual port, if an ephemeral one has been requested
+		InetSocketAddress local = (InetSocketAddress) channel
+				.getLocalAddress();
+		udpAddress = new UdpAddress(local.getAddress(), local.getPort());
+		eventLoop.register(channel, this);
+		logger.debug("Listening on " + udpAddress);
+	}
+
+	/**
+	 * Sets the socket options before binding the channel.
+	 */
+	protected void configure(DatagramChannel channel) throws IOException {
+		if (receiveBufferSize > 0)
+			channel.setOption(StandardSocketOptions.SO_RCVBUF,
+					receiveBufferSize);
+		if (reusePort) {
+			if (SO_REUSEPORT == null
+					|| !channel.supportedOptions().contains(SO_REUSEPORT))
+				throw new IOException("SO_REUSEPORT not supported");
+			channel.setOption(SO_REUSEPORT, true);
+		}
+	}
+
+	/**
+	 * StandardSocketOptions.SO_REUSEPORT, looked up by reflection since it
+	 * exists only from Java 9. Null if not available.
+	 */
+	private static final SocketOption<Boolean> SO_REUSEPORT = lookupReusePort();
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> lookupReusePort() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class
+					.getField("SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	public void onReadable(SelectionKey key) {
+		DatagramChannel ch = (DatagramChannel) key.channel();
+		for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+			ByteBuffer buf = bufferPool.acquire();
+			try {
+				InetSocketAddress from = (InetSocketAddress) ch.receive(buf);
+				if (from == null)
+					return;
+				buf.flip();
+				received.incrementAndGet();
+				UdpAddress source = new UdpAddress(from.getAddress(),
+						from.getPort());
+				TransportStateReference tmStateReference = new TransportStateReference(
+						this, source, null, SecurityLevel.undefined,
+						SecurityLevel.undefined, false, ch);
+				if (copyOnDispatch) {
+					ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+					copy.put(buf);
+					copy.flip();
+					fireProcessMessage(source, copy, tmStateReference);
+				} else
+					fireProcessMessage(source, buf, tmStateReference);
+			} catch (IOException e) {
+				logger.warn("IOException while receiving on " + udpAddress, e);
+				return;
+			} finally {
+				bufferPool.release(buf);
+			}
+		}
+	}
+
+	public void sendMessage(UdpAddress targetAddress, byte[] message,
+			TransportStateReference tmStateReference) throws IOException {
+		DatagramChannel ch = channel;
+		if (ch == null)
+			throw new IOException("Transport not listening");
+		ByteBuffer buf = bufferPool.acquire();
+		try {
+			buf.put(message);
+			buf.flip();
+			if (ch.send(buf, new InetSocketAddress(
+					targetAddress.getInetAddress(), targetAddress.getPort())) == 0) {
+				// socket buffer full, the request will be retransmitted
+				sendDrops.incrementAndGet();
+				logger.warn("Send buffer full, message to " + targetAddress
+						+ " dropped");
+			} else
+				sent.incrementAndGet();
+		} finally {
+			bufferPool.release(buf);
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (channel == null)
+			return;
+		// closing the channel also cancels its selection key
+		channel.close();
+		channel = null;
+	}
+
+	public synchronized boolean isListening() {
+		return channel != null;
+	}
+
+	/**
+	 * @return number of datagrams received
+	 */
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	/**
+	 * @return number of datagrams sent
+	 */
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	/**
+	 * @return number of datagrams dropped because the send buffer was full
+	 */
+	public long getSendDropsCount() {
+		return sendDrops.get();
+	}
+
+}
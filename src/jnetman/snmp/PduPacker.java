@@ -0,0 +1,228 @@
+package jnetman.snmp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.PDU;
+import org.snmp4j.ScopedPDU;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Splits the variable bindings of a GET, GETNEXT or SET request into the
+ * fewest PDUs that fit the maximum message size of the agent, sends them
+ * concurrently and reassembles the responses in the original order.
+ *
+ * The maximum message size starts from MAX_MESSAGE_SIZE and is lowered each
+ * time the agent answers with a tooBig error, the request that caused it is
+ * then split in two halves and sent again.
+ *
+ * Note that splitting a SET request makes it no longer atomic, this only
+ * happens when the request doesn't fit a single message.
+ */
+public class PduPacker {
+
+	/**
+	 * Minimum message size every SNMP agent must accept (RFC 3417).
+	 */
+	public static final int MIN_MESSAGE_SIZE = 484;
+
+	/**
+	 * Estimated size of the SNMPv3 message header, USM security parameters
+	 * and scoped PDU header, including DES padding.
+	 */
+	public static final int MESSAGE_OVERHEAD = 128;
+
+	/**
+	 * Estimated size of an unknown value in a GET/GETNEXT response. Counters
+	 * and integers take at most 11 bytes, short strings a few tens.
+	 */
+	public static final int VALUE_SIZE_ESTIMATE = 16;
+
+	private final SnmpClient client;
+	private final Logger logger;
+	private int maxMessageSize;
+	private long splitRequests;
+	private long tooBigResponses;
+
+	/**
+	 * @param client
+	 *            SnmpClient used to send the single PDUs
+	 * @param maxMessageSize
+	 *            initial estimate of the maximum message size of the agent
+	 */
+	public PduPacker(SnmpClient client, int maxMessageSize) {
+		this.client = client;
+		this.maxMessageSize = Math.max(MIN_MESSAGE_SIZE, maxMessageSize);
+		this.logger = Logger.getLogger("snmp.pduPacker."
+				+ client.getNetworkDevice().getName());
+	}
+
+	/**
+	 * Sends the variable bindings using as few PDUs as possible.
+	 *
+	 * @param vbs
+	 *            variable bindings of the request
+	 * @param pduType
+	 *            PDU.GET, PDU.GETNEXT or PDU.SET
+	 * @return Future completed with the response variable bindings, in the
+	 *         same order of the request
+	 */
+	public CompletableFuture<VariableBinding[]> send(VariableBinding[] vbs,
+			int pduType) {
+		final VariableBinding[] out = new VariableBinding[vbs.length];
+		List<int[]> chunks = split(vbs, 0, vbs.length, pduType);
+		if (chunks.size() > 1) {
+			synchronized (this) {
+				splitRequests++;
+			}
+			logger.debug("Request with " + vbs.length
+					+ " variable bindings split in " + chunks.size() + " PDUs");
+		}
+		return sendChunks(vbs, chunks, pduType, out).thenApply(
+				new Function<Void, VariableBinding[]>() {
+					public VariableBinding[] apply(Void v) {
+						return out;
+					}
+				});
+	}
+
+	private CompletableFuture<Void> sendRange(VariableBinding[] vbs,
+			int from, int to, int pduType, VariableBinding[] out) {
+		return sendChunks(vbs, split(vbs, from, to, pduType), pduType, out);
+	}
+
+	private CompletableFuture<Void> sendChunks(VariableBinding[] vbs,
+			List<int[]> chunks, int pduType, VariableBinding[] out) {
+		if (chunks.size() == 1)
+			return sendChunk(vbs, chunks.get(0)[0], chunks.get(0)[1], pduType,
+					out);
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[chunks.size()];
+		for (int i = 0; i < futures.length; i++)
+			futures[i] = sendChunk(vbs, chunks.get(i)[0], chunks.get(i)[1],
+					pduType, out);
+		return CompletableFuture.allOf(futures);
+	}
+
+	private CompletableFuture<Void> sendChunk(final VariableBinding[] vbs,
+			final int from, final int to, final int pduType,
+			final VariableBinding[] out) {
+		PDU pdu = new ScopedPDU();
+		for (int i = from; i < to; i++)
+			pdu.add(vbs[i]);
+		pdu.setType(pduType);
+
+		return client
+				.sendAsync(pdu)
+				.handle(new BiFunction<VariableBinding[], Throwable, CompletableFuture<Void>>() {
+					public CompletableFuture<Void> apply(VariableBinding[] res,
+							Throwable ex) {
+						if (ex == null) {
+							if (res.length != to - from)
+								return SnmpFutures.failed(new SnmpErrorException(
+										"Expected " + (to - from)
+												+ " variable bindings, "
+												+ res.length + " received"));
+							System.arraycopy(res, 0, out, from, res.length);
+							return CompletableFuture.completedFuture(null);
+						}
+						ex = SnmpFutures.unwrap(ex);
+						if (to - from > 1
+								&& ex instanceof SnmpErrorException
+								&& ((SnmpErrorException) ex).getErrorStatus() == PDU.tooBig) {
+							onTooBig(estimateSize(vbs, from, to, pduType));
+							int mid = (from + to) >>> 1;
+							return CompletableFuture.allOf(
+									sendRange(vbs, from, mid, pduType, out),
+									sendRange(vbs, mid, to, pduType, out));
+						}
+						return SnmpFutures.failed(ex);
+					}
+				})
+				.thenCompose(
+						new Function<CompletableFuture<Void>, CompletableFuture<Void>>() {
+							public CompletableFuture<Void> apply(
+									CompletableFuture<Void> f) {
+								return f;
+							}
+						});
+	}
+
+	/**
+	 * Splits the variable bindings in the range [from, to) in consecutive
+	 * chunks whose estimated message size fits the maximum message size.
+	 *
+	 * @return list of [from, to) ranges, one per PDU
+	 */
+	List<int[]> split(VariableBinding[] vbs, int from, int to, int pduType) {
+		int budget = getMaxMessageSize() - MESSAGE_OVERHEAD;
+		List<int[]> chunks = new ArrayList<int[]>();
+		int start = from;
+		int size = 0;
+		for (int i = from; i < to; i++) {
+			int vbSize = estimateSize(vbs[i], pduType);
+			if (i > start && size + vbSize > budget) {
+				chunks.add(new int[] { start, i });
+				start = i;
+				size = 0;
+			}
+			size += vbSize;
+		}
+		if (to > start || chunks.isEmpty())
+			chunks.add(new int[] { start, to });
+		return chunks;
+	}
+
+	/**
+	 * Estimated encoded size of a variable binding in the response.
+	 */
+	static int estimateSize(VariableBinding vb, int pduType) {
+		if (pduType == PDU.SET)
+			return vb.getBERLength();
+		// sequence header + OID + estimated value
+		return 4 + vb.getOid().getBERLength() + VALUE_SIZE_ESTIMATE;
+	}
+
+	static int estimateSize(VariableBinding[] vbs, int from, int to,
+			int pduType) {
+		int size = MESSAGE_OVERHEAD;
+		for (int i = from; i < to; i++)
+			size += estimateSize(vbs[i], pduType);
+		return size;
+	}
+
+	private synchronized void onTooBig(int estimatedSize) {
+		tooBigResponses++;
+		int size = Math.max(MIN_MESSAGE_SIZE, estimatedSize * 3 / 4);
+		if (size < maxMessageSize) {
+			maxMessageSize = size;
+			logger.debug("tooBig received, max message size lowered to "
+					+ maxMessageSize + " bytes");
+		}
+	}
+
+	/**
+	 * @return the maximum message size currently assumed for the agent
+	 */
+	public synchronized int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * @return number of requests that have been split in more PDUs
+	 */
+	public synchronized long getSplitRequestsCount() {
+		return splitRequests;
+	}
+
+	/**
+	 * @return number of tooBig errors received
+	 */
+	public synchronized long getTooBigCount() {
+		return tooBigResponses;
+	}
+
+}
@@ -0,0 +1,142 @@
+package jnetman.snmp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free table of the requests waiting for a response, keyed by the
+ * primitive int request ID. Slots are indexed by the request ID itself (IDs
+ * are sequential, so consecutive requests never collide) with a short linear
+ * probe, and claimed/released by CAS. Adding a request allocates its entry,
+ * looking it up and removing it allocates nothing.
+ *
+ * Entries carry a deadline, sweep removes the expired ones so that a lost
+ * callback can never leave a request pending forever.
+ *
+ * The table does not replace the pending map of snmp4j, which still tracks
+ * every request for its retries and timeouts: SnmpClient layers it on top to
+ * find the request of a response from a single shared listener and to sweep
+ * the requests whose callback never arrived.
+ */
+public class PendingRequestTable<V> {
+
+	/**
+	 * Maximum number of slots probed from the home slot of a key.
+	 */
+	public static final int MAX_PROBES = 16;
+
+	/**
+	 * Called by sweep for every expired entry.
+	 */
+	public interface ExpiryHandler<V> {
+		void expired(int key, V value);
+	}
+
+	private final AtomicReferenceArray<Entry<V>> slots;
+	private final int mask;
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * @param capacity
+	 *            number of slots, rounded up to a power of two. It should be
+	 *            much larger than the number of requests in flight.
+	 */
+	public PendingRequestTable(int capacity) {
+		int n = Integer.highestOneBit(Math.max(MAX_PROBES, capacity - 1)) << 1;
+		this.slots = new AtomicReferenceArray<Entry<V>>(n);
+		this.mask = n - 1;
+	}
+
+	/**
+	 * Adds a pending request.
+	 *
+	 * @param key
+	 *            request ID
+	 * @param value
+	 *            pending request
+	 * @param deadline
+	 *            System.nanoTime() after which the entry is expired
+	 * @return false if no free slot has been found, the table is too small
+	 *         for the number of requests in flight
+	 */
+	public boolean put(int key, V value, long deadline) {
+		Entry<V> entry = new Entry<V>(key, value, deadline);
+		int i = key & mask;
+		for (int p = 0; p < MAX_PROBES; p++, i = (i + 1) & mask) {
+			if (slots.get(i) == null && slots.compareAndSet(i, null, entry)) {
+				size.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes and returns the pending request with the passed ID.
+	 *
+	 * @return the pending request, null if not found (already completed or
+	 *         swept)
+	 */
+	public V remove(int key) {
+		int i = key & mask;
+		for (int p = 0; p < MAX_PROBES; p++, i = (i + 1) & mask) {
+			Entry<V> entry = slots.get(i);
+			if (entry != null && entry.key == key
+					&& slots.compareAndSet(i, entry, null)) {
+				size.decrementAndGet();
+				return entry.value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes all the entries whose deadline has passed.
+	 *
+	 * @param now
+	 *            current System.nanoTime()
+	 * @param handler
+	 *            called for every entry removed
+	 * @return number of entries removed
+	 */
+	public int sweep(long now, ExpiryHandler<V> handler) {
+		int removed = 0;
+		for (int i = 0; i <= mask; i++) {
+			Entry<V> entry = slots.get(i);
+			if (entry != null && now - entry.deadline > 0
+					&& slots.compareAndSet(i, entry, null)) {
+				size.decrementAndGet();
+				removed++;
+				handler.expired(entry.key, entry.value);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return number of pending requests
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return number of slots of the table
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	private static final class Entry<V> {
+		final int key;
+		final V value;
+		final long deadline;
+
+		Entry(int key, V value, long deadline) {
+			this.key = key;
+			this.value = value;
+			this.deadline = deadline;
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package jnetman.snmp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the SNMP traffic sent to a device, or to the whole network, both
+ * in PDUs per second and in bytes per second. Each limit is a TokenBucket
+ * allowing a burst of one second of traffic. A limit of 0 or less disables
+ * it.
+ *
+ * The limiter never blocks: reserve returns how long the request has to be
+ * delayed, and the counters record how many requests were delayed and for
+ * how long in total.
+ */
+public class RateLimiter {
+
+	private final TokenBucket pdus;
+	private final TokenBucket bytes;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong throttledNanos = new AtomicLong();
+
+	/**
+	 * @param pdusPerSecond
+	 *            maximum PDUs per second, 0 for no limit
+	 * @param bytesPerSecond
+	 *            maximum bytes per second, 0 for no limit
+	 */
+	public RateLimiter(int pdusPerSecond, int bytesPerSecond) {
+		this.pdus = new TokenBucket(pdusPerSecond, pdusPerSecond);
+		this.bytes = new TokenBucket(bytesPerSecond, bytesPerSecond);
+	}
+
+	/**
+	 * Changes the limits, taking effect from the next request.
+	 */
+	public void setRates(int pdusPerSecond, int bytesPerSecond) {
+		pdus.setRate(pdusPerSecond, pdusPerSecond);
+		bytes.setRate(bytesPerSecond, bytesPerSecond);
+	}
+
+	/**
+	 * @return true if at least one of the limits is enabled
+	 */
+	public boolean isLimited() {
+		return pdus.isLimited() || bytes.isLimited();
+	}
+
+	/**
+	 * Reserves one PDU of the passed size.
+	 *
+	 * @param size
+	 *            estimated size in bytes of the traffic generated by the PDU
+	 * @return nanoseconds the PDU has to be delayed, 0 to send it at once
+	 */
+	public long reserve(int size) {
+		requests.incrementAndGet();
+		long delay = Math.max(pdus.reserve(1), bytes.reserve(size));
+		if (delay > 0) {
+			throttled.incrementAndGet();
+			throttledNanos.addAndGet(delay);
+		}
+		return delay;
+	}
+
+	/**
+	 * @return number of PDUs passed through the limiter
+	 */
+	public long getRequestsCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return number of PDUs that have been delayed
+	 */
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+
+	/**
+	 * @return total time the PDUs have been delayed, in millis
+	 */
+	public long getThrottledMillis() {
+		return throttledNanos.get() / 1000000;
+	}
+
+}
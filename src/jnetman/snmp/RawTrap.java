@@ -0,0 +1,29 @@
+package jnetman.snmp;
+
+import org.snmp4j.TransportMapping;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.smi.Address;
+
+/**
+ * Slot of the trap ring buffer: an undecoded message as received from the
+ * transport. The data array is reused by the following messages landing in
+ * the same slot and only grows for messages larger than it.
+ */
+class RawTrap {
+
+	byte[] data;
+	int length;
+	Address source;
+	TransportMapping<?> transport;
+	TransportStateReference tmStateReference;
+	long receivedMillis;
+	// acknowledged by the receive thread, if an INFORM
+	boolean acknowledged;
+	// an INFORM to be acknowledged once decoded, but not processed
+	boolean acknowledgeOnly;
+
+	RawTrap(int size) {
+		this.data = new byte[size];
+	}
+
+}
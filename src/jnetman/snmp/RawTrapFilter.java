@@ -0,0 +1,305 @@
+package jnetman.snmp;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+
+/**
+ * Pre-filter of the trap pipeline, run by the receive threads on the raw
+ * datagrams before they enter the ring: unwanted traps are dropped without
+ * being copied, decoded or processed by the USM.
+ *
+ * Traps are rejected by source address (allowed and denied sets), by
+ * community (v1/v2c) or authoritative engine ID (v3) and by trap OID. The
+ * community, engine ID and trap OID are found by a partial BER parse of the
+ * message, skipping everything else; the trap OID of encrypted v3 traps is
+ * not visible and never rejects them. Messages that cannot be parsed are let
+ * through, the decoder will count them.
+ *
+ * INFORMs whose trap OID is denied are not processed but must still be
+ * acknowledged, or the agent would retransmit them: their verdict is
+ * ACKNOWLEDGE_ONLY. The ones rejected by source, community or engine ID are
+ * not authenticated and never answered.
+ *
+ * The authoritative engine ID of a v3 message is the one of the sender only
+ * for traps: INFORMs carry the local engine ID and the engine ID discovery
+ * probes an empty one, both are left to the USM.
+ */
+public class RawTrapFilter {
+
+	public enum Verdict {
+		ACCEPT, REJECT, ACKNOWLEDGE_ONLY
+	}
+
+	private static final int TAG_V1_TRAP = 0xa4;
+	private static final int TAG_INFORM = 0xa6;
+	private static final int TAG_V2_TRAP = 0xa7;
+	private static final int MSG_FLAG_PRIV = 0x02;
+
+	private final Set<InetAddress> allowedSources = Collections
+			.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+	private final Set<InetAddress> deniedSources = Collections
+			.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+	private final Set<OctetString> allowedCommunities = Collections
+			.newSetFromMap(new ConcurrentHashMap<OctetString, Boolean>());
+	private final Set<OctetString> allowedEngineIDs = Collections
+			.newSetFromMap(new ConcurrentHashMap<OctetString, Boolean>());
+	private final List<OID> deniedTrapOIDs = new CopyOnWriteArrayList<OID>();
+	private volatile OctetString localEngineID;
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong deniedSource = new AtomicLong();
+	private final AtomicLong deniedCommunity = new AtomicLong();
+	private final AtomicLong deniedEngineID = new AtomicLong();
+	private final AtomicLong deniedTrapOID = new AtomicLong();
+	private final AtomicLong unparsed = new AtomicLong();
+
+	/**
+	 * Once a source is allowed, only the traps from allowed sources are
+	 * accepted.
+	 */
+	public void allowSource(InetAddress address) {
+		allowedSources.add(address);
+	}
+
+	public void denySource(InetAddress address) {
+		deniedSources.add(address);
+	}
+
+	/**
+	 * Once a community is allowed, only the v1/v2c traps with an allowed
+	 * community are accepted.
+	 */
+	public void allowCommunity(OctetString community) {
+		allowedCommunities.add(community);
+	}
+
+	/**
+	 * Once an engine ID is allowed, only the v3 traps from an allowed
+	 * authoritative engine are accepted.
+	 */
+	public void allowEngineID(OctetString engineID) {
+		allowedEngineIDs.add(engineID);
+	}
+
+	/**
+	 * Sets the engine ID of the receiver, the authoritative one of the v3
+	 * INFORMs sent to it.
+	 */
+	public void setLocalEngineID(OctetString localEngineID) {
+		this.localEngineID = localEngineID;
+	}
+
+	/**
+	 * Rejects the traps whose trap OID starts with the passed prefix. v1
+	 * traps are matched by their translated trap OID (RFC 3584).
+	 */
+	public void denyTrapOID(OID prefix) {
+		deniedTrapOIDs.add(prefix);
+	}
+
+	/**
+	 * @return true if only the allowed communities are accepted, i.e. the
+	 *         v1/v2c messages not rejected carry an allowed community
+	 */
+	public boolean isCommunityRestricted() {
+		return !allowedCommunities.isEmpty();
+	}
+
+	/**
+	 * @param source
+	 *            address of the sender
+	 * @param message
+	 *            the datagram, from its position to its limit, which are
+	 *            left untouched
+	 * @return REJECT if the trap must be dropped, ACKNOWLEDGE_ONLY if it is an
+	 *         INFORM to be acknowledged but not processed
+	 */
+	public Verdict filter(Address source, ByteBuffer message) {
+		if (source instanceof IpAddress) {
+			InetAddress inet = ((IpAddress) source).getInetAddress();
+			if (deniedSources.contains(inet)
+					|| (!allowedSources.isEmpty() && !allowedSources
+							.contains(inet))) {
+				deniedSource.incrementAndGet();
+				return Verdict.REJECT;
+			}
+		}
+		if (allowedCommunities.isEmpty() && allowedEngineIDs.isEmpty()
+				&& deniedTrapOIDs.isEmpty()) {
+			accepted.incrementAndGet();
+			return Verdict.ACCEPT;
+		}
+
+		try {
+			Verdict verdict = filterMessage(new BerReader(message));
+			if (verdict != Verdict.ACCEPT)
+				return verdict;
+		} catch (RuntimeException e) {
+			// malformed, left to the decoder
+			unparsed.incrementAndGet();
+		}
+		accepted.incrementAndGet();
+		return Verdict.ACCEPT;
+	}
+
+	private Verdict filterMessage(BerReader ber) {
+		ber.enter(BerReader.TAG_SEQUENCE);
+		long version = ber.readInteger();
+		int pduTag;
+		OID trapOID;
+		if (version == 3) {
+			ber.enter(BerReader.TAG_SEQUENCE);
+			// msgGlobalData: msgID, msgMaxSize, msgFlags, msgSecurityModel
+			ber.skip();
+			ber.skip();
+			OctetString flags = ber.readOctetString();
+			ber.skip();
+			ber.leave();
+			// msgSecurityParameters, an OCTET STRING wrapping the USM ones
+			ber.enter(BerReader.TAG_OCTET_STRING);
+			ber.enter(BerReader.TAG_SEQUENCE);
+			OctetString engineID = ber.readOctetString();
+			if (!allowedEngineIDs.isEmpty() && engineID.length() > 0
+					&& !engineID.equals(localEngineID)
+					&& !allowedEngineIDs.contains(engineID)) {
+				deniedEngineID.incrementAndGet();
+				return Verdict.REJECT;
+			}
+			if (deniedTrapOIDs.isEmpty() || flags.length() < 1
+					|| (flags.get(0) & MSG_FLAG_PRIV) != 0)
+				return Verdict.ACCEPT;
+			ber.leave();
+			ber.leave();
+			// plain ScopedPDU: contextEngineID, contextName, PDU
+			ber.enter(BerReader.TAG_SEQUENCE);
+			ber.skip();
+			ber.skip();
+			pduTag = ber.tag();
+			trapOID = readTrapOID(ber);
+		} else {
+			OctetString community = ber.readOctetString();
+			if (!allowedCommunities.isEmpty()
+					&& !allowedCommunities.contains(community)) {
+				deniedCommunity.incrementAndGet();
+				return Verdict.REJECT;
+			}
+			if (deniedTrapOIDs.isEmpty())
+				return Verdict.ACCEPT;
+			pduTag = ber.tag();
+			trapOID = readTrapOID(ber);
+		}
+
+		if (trapOID != null)
+			for (OID prefix : deniedTrapOIDs)
+				if (trapOID.startsWith(prefix)) {
+					deniedTrapOID.incrementAndGet();
+					return pduTag == TAG_INFORM ? Verdict.ACKNOWLEDGE_ONLY
+							: Verdict.REJECT;
+				}
+		return Verdict.ACCEPT;
+	}
+
+	/**
+	 * @return the trap OID of the PDU, null if not a trap
+	 */
+	private static OID readTrapOID(BerReader ber) {
+		int tag = ber.tag();
+		if (tag == TAG_V1_TRAP) {
+			ber.enter(TAG_V1_TRAP);
+			OID enterprise = ber.readOID();
+			ber.skip(); // agent-addr
+			int generic = (int) ber.readInteger();
+			int specific = (int) ber.readInteger();
+			if (generic < 6)
+				return new OID(MIB.SnmpTraps).append(generic + 1);
+			return new OID(enterprise).append(0).append(specific);
+		}
+		if (tag != TAG_V2_TRAP && tag != TAG_INFORM)
+			return null;
+		ber.enter(tag);
+		// request-id, error-status, error-index
+		ber.skip();
+		ber.skip();
+		ber.skip();
+		ber.enter(BerReader.TAG_SEQUENCE);
+		// snmpTrapOID.0 is the second variable binding, after sysUpTime.0
+		for (int i = 0; i < 2 && ber.hasMore(); i++) {
+			ber.enter(BerReader.TAG_SEQUENCE);
+			if (ber.readOID().equals(MIB.SnmpTrapOID))
+				return ber.readOID();
+			ber.leave();
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of traps accepted
+	 */
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+
+	/**
+	 * @return number of traps rejected by source address
+	 */
+	public long getDeniedSourceCount() {
+		return deniedSource.get();
+	}
+
+	/**
+	 * @return number of traps rejected by community
+	 */
+	public long getDeniedCommunityCount() {
+		return deniedCommunity.get();
+	}
+
+	/**
+	 * @return number of traps rejected by engine ID
+	 */
+	public long getDeniedEngineIDCount() {
+		return deniedEngineID.get();
+	}
+
+	/**
+	 * @return number of traps rejected by trap OID
+	 */
+	public long getDeniedTrapOIDCount() {
+		return deniedTrapOID.get();
+	}
+
+	/**
+	 * @return number of messages that could not be parsed, accepted anyway
+	 */
+	public long getUnparsedCount() {
+		return unparsed.get();
+	}
+
+	/**
+	 * @return total number of traps rejected
+	 */
+	public long getDeniedCount() {
+		return deniedSource.get() + deniedCommunity.get()
+				+ deniedEngineID.get() + deniedTrapOID.get();
+	}
+
+	public String toString() {
+		return "accepted = " + getAcceptedCount() + ", denied source = "
+				+ getDeniedSourceCount() + ", denied community = "
+				+ getDeniedCommunityCount() + ", denied engine ID = "
+				+ getDeniedEngineIDCount() + ", denied trap OID = "
+				+ getDeniedTrapOIDCount() + ", unparsed = "
+				+ getUnparsedCount();
+	}
+
+}
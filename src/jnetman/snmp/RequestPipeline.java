@@ -0,0 +1,206 @@
+package jnetman.snmp;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Per-device request pipeline. Up to window requests are allowed to be
+ * outstanding at the same time, the others are queued and started in order as
+ * soon as one of the in-flight requests completes.
+ */
+public class RequestPipeline {
+
+	private final Queue<Pending<?>> queue = new ArrayDeque<Pending<?>>();
+	private int window;
+	private int inFlight;
+	private int maxQueueDepth;
+	private long submitted;
+	private long queued;
+
+	/**
+	 * Creates a new pipeline.
+	 *
+	 * @param window
+	 *            Maximum number of outstanding requests, at least 1
+	 */
+	public RequestPipeline(int window) {
+		this.setWindow(window);
+	}
+
+	/**
+	 * Submits a request to the pipeline. The supplier is invoked, possibly
+	 * from another thread, when a slot of the window becomes available.
+	 *
+	 * @param request
+	 *            Supplier that actually sends the request
+	 * @return Future completed as the one returned by the supplier
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> request) {
+		Pending<T> pending = new Pending<T>(request);
+		synchronized (this) {
+			submitted++;
+			if (inFlight >= window) {
+				queue.add(pending);
+				queued++;
+				if (queue.size() > maxQueueDepth)
+					maxQueueDepth = queue.size();
+				return pending.future;
+			}
+			inFlight++;
+		}
+		start(pending);
+		return pending.future;
+	}
+
+	/**
+	 * Starts the request and the queued ones after it, as long as they
+	 * complete synchronously (e.g. rejected by an open circuit breaker). The
+	 * queue is drained in a loop, not recursively, so that a long queue
+	 * cannot overflow the stack.
+	 */
+	private void start(Pending<?> pending) {
+		while (pending != null)
+			pending = startOne(pending);
+	}
+
+	/**
+	 * @return the next request to start if this one completed synchronously,
+	 *         else null
+	 */
+	private <T> Pending<?> startOne(final Pending<T> pending) {
+		CompletableFuture<T> sent;
+		try {
+			sent = pending.request.get();
+		} catch (RuntimeException e) {
+			sent = SnmpFutures.failed(e);
+		}
+		if (sent.isDone()) {
+			Pending<?> next = release();
+			forward(sent, pending.future);
+			return next;
+		}
+		sent.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T result, Throwable ex) {
+				Pending<?> next = release();
+				complete(pending.future, result, ex);
+				start(next);
+			}
+		});
+		return null;
+	}
+
+	private static <T> void forward(CompletableFuture<T> from,
+			final CompletableFuture<T> to) {
+		from.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T result, Throwable ex) {
+				complete(to, result, ex);
+			}
+		});
+	}
+
+	private static <T> void complete(CompletableFuture<T> future, T result,
+			Throwable ex) {
+		if (ex != null)
+			future.completeExceptionally(SnmpFutures.unwrap(ex));
+		else
+			future.complete(result);
+	}
+
+	/**
+	 * Frees the slot of a completed request, or hands it to the next queued
+	 * one.
+	 *
+	 * @return the queued request taking the slot, null if none
+	 */
+	private Pending<?> release() {
+		Pending<?> next;
+		synchronized (this) {
+			if (inFlight > window || (next = queue.poll()) == null) {
+				inFlight--;
+				return null;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * @return The maximum number of outstanding requests
+	 */
+	public synchronized int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Changes the maximum number of outstanding requests. When the window
+	 * grows queued requests are started immediately, when it shrinks the
+	 * in-flight requests are drained down to the new value.
+	 */
+	public void setWindow(int window) {
+		if (window < 1)
+			throw new IllegalArgumentException("window must be at least 1");
+		Pending<?> next;
+		while (true) {
+			synchronized (this) {
+				this.window = window;
+				if (inFlight >= window || (next = queue.poll()) == null)
+					return;
+				inFlight++;
+			}
+			start(next);
+		}
+	}
+
+	/**
+	 * @return Number of requests currently outstanding
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return Number of requests waiting for a slot of the window
+	 */
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return Highest queue depth observed
+	 */
+	public synchronized int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	/**
+	 * @return Total number of requests submitted
+	 */
+	public synchronized long getSubmittedCount() {
+		return submitted;
+	}
+
+	/**
+	 * @return Number of requests that had to wait in the queue
+	 */
+	public synchronized long getQueuedCount() {
+		return queued;
+	}
+
+	public synchronized String toString() {
+		return "window = " + window + ", inFlight = " + inFlight
+				+ ", queueDepth = " + queue.size() + ", maxQueueDepth = "
+				+ maxQueueDepth;
+	}
+
+	private static class Pending<T> {
+		final Supplier<CompletableFuture<T>> request;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		Pending(Supplier<CompletableFuture<T>> request) {
+			this.request = request;
+		}
+	}
+
+}
@@ -0,0 +1,270 @@
+package jnetman.snmp;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.smi.OID;
+
+/**
+ * Cache of the responses of a device for slowly changing MIB objects. Each
+ * OID subtree can be given its own time to live, responses for OIDs outside
+ * of all the configured subtrees are never cached. The number of entries is
+ * bounded, the least recently used ones are evicted first.
+ *
+ * The whole cache is cleared when the agent has been restarted, and indexes
+ * may have been renumbered: when its sysUpTime is lower than the last one
+ * seen plus the time elapsed since then.
+ *
+ * Every invalidation starts a new generation of the cache. A response is
+ * cached only if no invalidation happened since its request was sent,
+ * otherwise a GET or walk in flight during a SET could put the old value
+ * back.
+ */
+public class ResponseCache {
+
+	/**
+	 * Key of a cached response: the kind of request (e.g. GET or walk) and
+	 * the OIDs it was sent for.
+	 */
+	public static final class Key {
+		final String kind;
+		final OID[] oids;
+
+		public Key(String kind, OID... oids) {
+			this.kind = kind;
+			this.oids = oids.clone();
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return kind.equals(other.kind) && Arrays.equals(oids, other.oids);
+		}
+
+		public int hashCode() {
+			return 31 * kind.hashCode() + Arrays.hashCode(oids);
+		}
+
+		public String toString() {
+			return kind + " " + Arrays.toString(oids);
+		}
+	}
+
+	/*
+	 * Fixed part of the tolerance on the expected sysUpTime, the variable one
+	 * is 1% of the time elapsed.
+	 */
+	private static final long RESTART_TOLERANCE_MILLIS = 5000;
+
+	private final Logger logger;
+	private final int maxEntries;
+	// TTL in millis of each subtree, the longest matching prefix wins
+	private final TreeMap<OID, Long> ttls = new TreeMap<OID, Long>();
+	private final LinkedHashMap<Key, CachedResponse> entries;
+	private long lastSysUpTime = -1;
+	private long lastSysUpTimeMillis;
+	private long generation;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	/**
+	 * @param name
+	 *            name of the device, for logging
+	 * @param maxEntries
+	 *            maximum number of cached responses
+	 */
+	public ResponseCache(String name, final int maxEntries) {
+		this.logger = Logger.getLogger("snmp.responseCache." + name);
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<Key, CachedResponse>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<Key, CachedResponse> eldest) {
+				if (size() <= ResponseCache.this.maxEntries)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Sets the time to live of the responses for the OIDs of the passed
+	 * subtree, 0 not to cache them.
+	 */
+	public synchronized void setTtl(OID subtree, long ttlMillis) {
+		ttls.put(new OID(subtree), ttlMillis);
+	}
+
+	/**
+	 * Returns the time to live of a response for the passed OID.
+	 */
+	public synchronized long getTtl(OID oid) {
+		long ttl = 0;
+		int longest = -1;
+		for (Map.Entry<OID, Long> e : ttls.entrySet())
+			if (oid.startsWith(e.getKey()) && e.getKey().size() > longest) {
+				longest = e.getKey().size();
+				ttl = e.getValue();
+			}
+		return ttl;
+	}
+
+	/**
+	 * @return true if the responses for the key can be cached, i.e. all its
+	 *         OIDs are inside cacheable subtrees
+	 */
+	public synchronized boolean isCacheable(Key key) {
+		return maxEntries > 0 && getTtl(key) > 0;
+	}
+
+	/**
+	 * @return the shortest of the TTLs of the OIDs of the key
+	 */
+	private long getTtl(Key key) {
+		long ttl = Long.MAX_VALUE;
+		for (OID oid : key.oids)
+			ttl = Math.min(ttl, getTtl(oid));
+		return ttl;
+	}
+
+	/**
+	 * @return the cached response, null if missing or expired
+	 */
+	public synchronized Object get(Key key) {
+		CachedResponse entry = entries.get(key);
+		if (entry != null && System.currentTimeMillis() < entry.expiry) {
+			hits++;
+			return entry.value;
+		}
+		if (entry != null)
+			entries.remove(key);
+		misses++;
+		return null;
+	}
+
+	/**
+	 * @return the current generation, to be read before sending a request
+	 *         whose response will be put in the cache
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Caches a response, if all the OIDs of the key are inside cacheable
+	 * subtrees. The shortest of their TTLs is used.
+	 */
+	public synchronized void put(Key key, Object value) {
+		put(key, value, generation);
+	}
+
+	/**
+	 * Caches a response, unless the cache has been invalidated since the
+	 * passed generation.
+	 *
+	 * @param generation
+	 *            generation read when the request was sent
+	 */
+	public synchronized void put(Key key, Object value, long generation) {
+		if (maxEntries <= 0 || generation != this.generation)
+			return;
+		long ttl = getTtl(key);
+		if (ttl <= 0)
+			return;
+		entries.put(key,
+				new CachedResponse(value, System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * Removes the responses that may contain the passed OID, e.g. after a
+	 * SET.
+	 */
+	public synchronized void invalidate(OID oid) {
+		generation++;
+		Iterator<Key> it = entries.keySet().iterator();
+		while (it.hasNext()) {
+			for (OID cached : it.next().oids)
+				if (oid.startsWith(cached) || cached.startsWith(oid)) {
+					it.remove();
+					invalidations++;
+					break;
+				}
+		}
+	}
+
+	/**
+	 * Removes all the responses.
+	 */
+	public synchronized void clear() {
+		generation++;
+		invalidations += entries.size();
+		entries.clear();
+	}
+
+	/**
+	 * Records the sysUpTime received from the agent, clearing the cache if
+	 * the agent has been restarted since the last one: the new value is
+	 * lower than expected from the wall time elapsed, even if it did not go
+	 * backwards.
+	 *
+	 * @param sysUpTime
+	 *            sysUpTime in hundredths of second
+	 */
+	public synchronized void onSysUpTime(long sysUpTime) {
+		long now = System.currentTimeMillis();
+		if (lastSysUpTime >= 0) {
+			long elapsed = Math.max(0, now - lastSysUpTimeMillis);
+			long expected = lastSysUpTime + elapsed / 10;
+			// clock drift and the latency of the requests
+			long tolerance = (RESTART_TOLERANCE_MILLIS + elapsed / 100) / 10;
+			if (sysUpTime < expected - tolerance) {
+				logger.info("sysUpTime " + sysUpTime + " lower than expected ("
+						+ expected + "), agent restarted, cache cleared");
+				clear();
+			}
+		}
+		lastSysUpTime = sysUpTime;
+		lastSysUpTimeMillis = now;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHitsCount() {
+		return hits;
+	}
+
+	public synchronized long getMissesCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionsCount() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidationsCount() {
+		return invalidations;
+	}
+
+	private static final class CachedResponse {
+		final Object value;
+		final long expiry;
+
+		CachedResponse(Object value, long expiry) {
+			this.value = value;
+			this.expiry = expiry;
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package jnetman.snmp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer ring buffer of
+ * pre-allocated events (D. Vyukov's bounded MPMC queue). Producers and
+ * consumers never allocate: a producer claims a slot, fills the event in
+ * place and publishes it; a consumer takes a published slot, reads the event
+ * and releases the slot for reuse.
+ *
+ * Each slot has a sequence number telling whether it is free for the
+ * producer of a given lap or published for its consumer. Claiming is a
+ * single CAS on the tail (head) counter.
+ */
+public class RingBuffer<E> {
+
+	/**
+	 * Creates the events of the ring at construction time.
+	 */
+	public interface EventFactory<E> {
+		E newEvent();
+	}
+
+	private final Object[] events;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            number of slots, rounded up to a power of two
+	 * @param factory
+	 *            creates the pre-allocated events
+	 */
+	public RingBuffer(int capacity, EventFactory<E> factory) {
+		int n = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.events = new Object[n];
+		this.sequences = new AtomicLongArray(n);
+		this.mask = n - 1;
+		for (int i = 0; i < n; i++) {
+			events[i] = factory.newEvent();
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Claims the next free slot for writing.
+	 *
+	 * @return the sequence of the slot, -1 if the ring is full
+	 */
+	public long tryClaim() {
+		long pos = tail.get();
+		while (true) {
+			long dif = sequences.get((int) pos & mask) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1))
+					return pos;
+				pos = tail.get();
+			} else if (dif < 0)
+				return -1;
+			else
+				pos = tail.get();
+		}
+	}
+
+	/**
+	 * Makes the event of a claimed slot visible to the consumers.
+	 */
+	public void publish(long sequence) {
+		sequences.lazySet((int) sequence & mask, sequence + 1);
+	}
+
+	/**
+	 * Takes the next published slot for reading.
+	 *
+	 * @return the sequence of the slot, -1 if the ring is empty
+	 */
+	public long tryTake() {
+		long pos = head.get();
+		while (true) {
+			long dif = sequences.get((int) pos & mask) - (pos + 1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1))
+					return pos;
+				pos = head.get();
+			} else if (dif < 0)
+				return -1;
+			else
+				pos = head.get();
+		}
+	}
+
+	/**
+	 * Gives a taken slot back to the producers.
+	 */
+	public void release(long sequence) {
+		sequences.lazySet((int) sequence & mask, sequence + mask + 1);
+	}
+
+	/**
+	 * Returns the event of a claimed or taken slot.
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(long sequence) {
+		return (E) events[(int) sequence & mask];
+	}
+
+	/**
+	 * @return approximate number of events published and not yet taken
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+}
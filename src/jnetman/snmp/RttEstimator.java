@@ -0,0 +1,114 @@
+package jnetman.snmp;
+
+/**
+ * TCP-style round trip time estimator (RFC 6298) kept for each device. The
+ * smoothed RTT and its variance set the timeout of the requests sent to the
+ * device, bounded by MIN_TIMEOUT and TIMEOUT. Each timeout doubles the
+ * current value until a new sample is measured.
+ *
+ * Samples of requests that have been retransmitted are discarded (Karn's
+ * algorithm) since the response can't be matched to a transmission.
+ */
+public class RttEstimator {
+
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+
+	private final long minTimeout;
+	private final long maxTimeout;
+
+	private double srtt = -1;
+	private double rttvar;
+	private long timeout;
+	private long samples;
+	private long timeouts;
+
+	/**
+	 * @param minTimeout
+	 *            lower bound for the timeout in millis
+	 * @param maxTimeout
+	 *            upper bound for the timeout in millis, also used until the
+	 *            first sample is measured
+	 */
+	public RttEstimator(long minTimeout, long maxTimeout) {
+		this.maxTimeout = Math.max(1, maxTimeout);
+		this.minTimeout = Math.max(1, Math.min(minTimeout, this.maxTimeout));
+		this.timeout = this.maxTimeout;
+	}
+
+	/**
+	 * Adds a new RTT sample.
+	 *
+	 * @param rttMillis
+	 *            time elapsed between the request and the response
+	 * @param requestTimeout
+	 *            timeout used for the request, if the RTT exceeds it the
+	 *            request has been retransmitted and the sample is discarded
+	 */
+	public synchronized void onResponse(long rttMillis, long requestTimeout) {
+		if (rttMillis >= requestTimeout)
+			return;
+		if (srtt < 0) {
+			srtt = rttMillis;
+			rttvar = rttMillis / 2.0;
+		} else {
+			rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rttMillis);
+			srtt = (1 - ALPHA) * srtt + ALPHA * rttMillis;
+		}
+		samples++;
+		timeout = bound(Math.round(srtt + Math.max(1, 4 * rttvar)));
+	}
+
+	/**
+	 * Backs off the timeout after a request timed out.
+	 */
+	public synchronized void onTimeout() {
+		timeouts++;
+		timeout = bound(timeout * 2);
+	}
+
+	private long bound(long value) {
+		return Math.max(minTimeout, Math.min(maxTimeout, value));
+	}
+
+	/**
+	 * @return the timeout, in millis, to use for the next request
+	 */
+	public synchronized long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @return the smoothed RTT in millis, -1 if no sample has been measured
+	 */
+	public synchronized double getSmoothedRtt() {
+		return srtt;
+	}
+
+	/**
+	 * @return the RTT variance in millis
+	 */
+	public synchronized double getRttVariance() {
+		return rttvar;
+	}
+
+	/**
+	 * @return number of valid RTT samples measured
+	 */
+	public synchronized long getSamplesCount() {
+		return samples;
+	}
+
+	/**
+	 * @return number of timeouts observed
+	 */
+	public synchronized long getTimeoutsCount() {
+		return timeouts;
+	}
+
+	public synchronized String toString() {
+		return String.format("srtt = %.1f ms, rttvar = %.1f ms, timeout = %d ms",
+				srtt, rttvar, timeout);
+	}
+
+}
@@ -0,0 +1,96 @@
+package jnetman.snmp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates identical requests in flight at the same time: while a
+ * request for a key is pending, later callers with the same key get its
+ * result instead of sending a new one. The key is forgotten as soon as the
+ * request completes, so results are never reused afterwards.
+ *
+ * All the callers share the same result object, which must not be modified.
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong saved = new AtomicLong();
+
+	/**
+	 * Runs the request for the passed key, unless one is already in flight.
+	 *
+	 * @param key
+	 *            identifies the request
+	 * @param request
+	 *            sends the request, called only if no identical one is in
+	 *            flight
+	 * @return Future completed with the result of the request
+	 */
+	public CompletableFuture<V> execute(final K key,
+			Supplier<CompletableFuture<V>> request) {
+		requests.incrementAndGet();
+		final CompletableFuture<V> flight = new CompletableFuture<V>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+		if (existing != null) {
+			saved.incrementAndGet();
+			return dependent(existing);
+		}
+
+		CompletableFuture<V> f;
+		try {
+			f = request.get();
+		} catch (RuntimeException e) {
+			f = SnmpFutures.failed(e);
+		}
+		f.whenComplete(new BiConsumer<V, Throwable>() {
+			public void accept(V v, Throwable ex) {
+				// forget the key first, later callers must send a new request
+				inFlight.remove(key, flight);
+				if (ex != null)
+					flight.completeExceptionally(SnmpFutures.unwrap(ex));
+				else
+					flight.complete(v);
+			}
+		});
+		return dependent(flight);
+	}
+
+	/**
+	 * Callers get a dependent future, so that none of them can complete the
+	 * shared one.
+	 */
+	private CompletableFuture<V> dependent(CompletableFuture<V> f) {
+		return f.thenApply(new Function<V, V>() {
+			public V apply(V v) {
+				return v;
+			}
+		});
+	}
+
+	/**
+	 * @return number of requests received
+	 */
+	public long getRequestsCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return number of requests that joined one already in flight
+	 */
+	public long getSavedCount() {
+		return saved.get();
+	}
+
+	/**
+	 * @return number of distinct requests in flight
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+}
@@ -1,7 +1,15 @@
 package jnetman.snmp;
 
 import java.io.IOException;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import jnetman.network.AddressException;
 import jnetman.network.NetworkDevice;
@@ -14,36 +22,82 @@ import org.snmp4j.Snmp;
 import org.snmp4j.Target;
 import org.snmp4j.UserTarget;
 import org.snmp4j.event.ResponseEvent;
-import org.snmp4j.log.Log4jLogFactory;
-import org.snmp4j.log.LogFactory;
-import org.snmp4j.mp.MPv3;
+import org.snmp4j.event.ResponseListener;
 import org.snmp4j.mp.SnmpConstants;
-import org.snmp4j.security.AuthMD5;
-import org.snmp4j.security.PrivDES;
 import org.snmp4j.security.SecurityLevel;
-import org.snmp4j.security.SecurityModels;
-import org.snmp4j.security.SecurityProtocols;
-import org.snmp4j.security.USM;
-import org.snmp4j.security.UsmUser;
 import org.snmp4j.smi.Address;
 import org.snmp4j.smi.GenericAddress;
 import org.snmp4j.smi.Integer32;
 import org.snmp4j.smi.OID;
 import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.SMIConstants;
 import org.snmp4j.smi.Variable;
 import org.snmp4j.smi.VariableBinding;
-import org.snmp4j.transport.DefaultUdpTransportMapping;
 import org.snmp4j.util.PDUFactory;
-import org.snmp4j.util.TreeEvent;
-import org.snmp4j.util.TreeListener;
-import org.snmp4j.util.TreeUtils;
 
 public class SnmpClient implements PDUFactory {
 
 	private Snmp snmpInstance;
 	private NetworkDevice targetDevice;
-
-	private static int requestID = 1;
+	private RequestPipeline pipeline;
+	private MaxRepetitionsEstimator maxRepetitions;
+	private PduPacker packer;
+	private GetCoalescer coalescer;
+	private volatile boolean engineCached;
+	private RttEstimator rttEstimator;
+	private RateLimiter rateLimiter;
+	private CircuitBreaker circuitBreaker;
+
+	private static final AtomicInteger requestID = new AtomicInteger();
+
+	/*
+	 * Requests of all the clients waiting for a response, keyed by request
+	 * ID. snmp4j keeps its own pending map for the retries and timeouts, this
+	 * one maps a response back to its request and future. Entries left behind
+	 * by a lost callback are swept after the request timeout plus a grace
+	 * period.
+	 */
+	private static final int PENDING_TABLE_SIZE = 1 << 16;
+	private static final long SWEEP_GRACE_MILLIS = 1000;
+	private static final PendingRequestTable<PendingRequest> pendingRequests = new PendingRequestTable<PendingRequest>(
+			PENDING_TABLE_SIZE);
+
+	/*
+	 * Single listener shared by all the requests, the response is matched to
+	 * its request through the pending request table.
+	 */
+	private static final ResponseListener RESPONSE_LISTENER = new ResponseListener() {
+		public void onResponse(ResponseEvent event) {
+			// Always cancel the request, otherwise snmp4j keeps it pending
+			((Snmp) event.getSource()).cancel(event.getRequest(), this);
+			PendingRequest request = pendingRequests.remove(event
+					.getRequest().getRequestID().getValue());
+			// null if already swept
+			if (request != null)
+				request.client.complete(request, event);
+		}
+	};
+
+	static {
+		SnmpScheduler.get().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				pendingRequests.sweep(System.nanoTime(),
+						new PendingRequestTable.ExpiryHandler<PendingRequest>() {
+							public void expired(int id, PendingRequest request) {
+								request.client.snmpInstance.cancel(
+										request.pdu, RESPONSE_LISTENER);
+								request.client.logger
+										.error("Request " + id
+												+ " swept, no callback received from "
+												+ request.target.getAddress());
+								request.future
+										.completeExceptionally(new TimeoutException(
+												request.target.getAddress()));
+							}
+						});
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
 	private Logger logger;
 
 	/**
@@ -58,50 +112,105 @@ public class SnmpClient implements PDUFactory {
 		// Create a new logger with name jnetman.snmp.device_name
 		logger = Logger.getLogger("snmp.snmpClient." + targetDevice.getName());
 
-		// If activated SNMP4J will show a huge amount of low level debug info
-		if (SnmpPref.isSnmp4jLogEnabled())
-			LogFactory.setLogFactory(new Log4jLogFactory());
+		// Requests are multiplexed over a session shared with other devices
+		snmpInstance = SnmpTransportPool.getSnmp(targetDevice);
 
-		try {
-			DefaultUdpTransportMapping transport = new DefaultUdpTransportMapping();
+		// Device specific window, if any, overrides the global one
+		int window = targetDevice.getMaxInFlight() > 0 ? targetDevice
+				.getMaxInFlight() : SnmpPref.getMaxInFlight();
+		pipeline = new RequestPipeline(window);
 
-			// Creates Snmp istance for that transport channel
-			snmpInstance = new Snmp(transport);
-			logger.debug("New SNMP Client crated");
+		rttEstimator = new RttEstimator(SnmpPref.getMinTimeout(),
+				SnmpPref.getTimeout());
 
-			// Creates v3 SNMP USM
-			USM usm = new USM(SecurityProtocols.getInstance(), new OctetString(
-					MPv3.createLocalEngineID()), 0);
-			SecurityModels.getInstance().addSecurityModel(usm);
+		maxRepetitions = new MaxRepetitionsEstimator(
+				SnmpPref.getInitialMaxRepetitions(),
+				SnmpPref.getMaxRepetitions());
 
-			// Adds 'jnetman' usm using MD5 authentication and DES encryption
-			UsmUser jnetmanUser = new UsmUser(
-					new OctetString(SnmpPref.getUser()), AuthMD5.ID,
-					new OctetString(SnmpPref.getPassword()), PrivDES.ID,
-					new OctetString(SnmpPref.getPassword()));
-			snmpInstance.getUSM().addUser(new OctetString(SnmpPref.getUser()),
-					jnetmanUser);
-			logger.debug("New USM User added >> " + jnetmanUser.getSecurityName());
+		packer = new PduPacker(this, SnmpPref.getMaxMessageSize());
 
-			// Enables listening for incoming SNMP packet
-			transport.listen();
+		rateLimiter = new RateLimiter(SnmpPref.getMaxPdusPerSecond(),
+				SnmpPref.getMaxBytesPerSecond());
 
-		} catch (IOException e) {
-			logger.fatal(
-					"IOException while creating a new DefaultUdpTransportMapping()",
-					e);
-			System.exit(-1);
-		}
+		circuitBreaker = new CircuitBreaker(targetDevice.getName(),
+				SnmpPref.getCircuitFailureThreshold(),
+				SnmpPref.getCircuitInitialBackoff(),
+				SnmpPref.getCircuitMaxBackoff());
+
+		if (SnmpPref.getCoalesceWindowMillis() > 0)
+			coalescer = new GetCoalescer(this,
+					SnmpPref.getCoalesceWindowMillis());
+		logger.debug("New SNMP Client crated");
 	}
 
 	public NetworkDevice getNetworkDevice() {
 		return this.targetDevice;
 	}
 
+	/**
+	 * Returns the RTT estimator of this device, to monitor the smoothed RTT,
+	 * its variance and the timeout currently in use.
+	 * 
+	 * @return the RttEstimator of this client
+	 */
+	public RttEstimator getRttEstimator() {
+		return this.rttEstimator;
+	}
+
+	/**
+	 * Returns the pipeline of this client, to inspect the in-flight and queue
+	 * depth counters or to tune the window at runtime.
+	 * 
+	 * @return the RequestPipeline used to send the requests of this client
+	 */
+	public RequestPipeline getPipeline() {
+		return this.pipeline;
+	}
+
+	/**
+	 * Returns the rate limiter of this device, to read the throttling
+	 * counters or to change the limits at runtime.
+	 * 
+	 * @return the RateLimiter applied to the requests of this client
+	 */
+	public RateLimiter getRateLimiter() {
+		return this.rateLimiter;
+	}
+
+	/**
+	 * Returns the circuit breaker of this device, to check whether the agent
+	 * is considered responding.
+	 * 
+	 * @return the CircuitBreaker of this client
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+
+	/**
+	 * Returns the rate limiter shared by all the clients.
+	 * 
+	 * @return the global RateLimiter
+	 */
+	public static RateLimiter getGlobalRateLimiter() {
+		return GlobalRateLimiter.instance;
+	}
+
+	/*
+	 * Limit on the traffic sent to the whole network, each client also has
+	 * its own limit for its device. Created on first use, when the SNMP
+	 * properties of the session have been loaded.
+	 */
+	private static class GlobalRateLimiter {
+		static final RateLimiter instance = new RateLimiter(
+				SnmpPref.getGlobalMaxPdusPerSecond(),
+				SnmpPref.getGlobalMaxBytesPerSecond());
+	}
+
 	/**
 	 * Returns a destination target to be used for a new SNMP message. The
 	 * target returned will use SNMP v3 protocol with authentication and privacy
-	 * enabled.
+	 * enabled, its timeout is set from the RTT measured for the device.
 	 * 
 	 * @return v3 authPriv Target
 	 * @throws AddressException
@@ -125,7 +234,7 @@ public class SnmpClient implements PDUFactory {
 		UserTarget target = new UserTarget();
 		target.setAddress(targetAddress);
 		target.setRetries(SnmpPref.getMaxRetries());
-		target.setTimeout(SnmpPref.getTimeout());
+		target.setTimeout(rttEstimator.getTimeout());
 		target.setVersion(SnmpConstants.version3);
 		target.setSecurityLevel(SecurityLevel.AUTH_PRIV);
 		target.setSecurityName(new OctetString(SnmpPref.getUser()));
@@ -144,7 +253,7 @@ public class SnmpClient implements PDUFactory {
 	 */
 	public VariableBinding[] get(OID oids[]) throws TimeoutException,
 			SnmpErrorException {
-		return this.packPDUAndSend(oids, PDU.GET);
+		return SnmpFutures.join(this.getAsync(oids));
 	}
 
 	/**
@@ -158,7 +267,7 @@ public class SnmpClient implements PDUFactory {
 	 */
 	public VariableBinding get(OID oid) throws TimeoutException,
 			SnmpErrorException {
-		return this.packPDUAndSend(new OID[] { new OID(oid) }, PDU.GET)[0];
+		return SnmpFutures.join(this.getAsync(oid))[0];
 	}
 
 	/**
@@ -234,106 +343,445 @@ public class SnmpClient implements PDUFactory {
 		return this.packPDUAndSend(vbs, PDU.SET);
 	}
 
-	public VariableBinding[] walk(OID oid) {
+	/**
+	 * Send a new asynchronous GET request for multiple OIDs.
+	 * 
+	 * @param oids
+	 *            Array of OID for the request.
+	 * @return Future completed with the variable bindings of the response, or
+	 *         exceptionally with a TimeoutException or SnmpErrorException
+	 */
+	public CompletableFuture<VariableBinding[]> getAsync(OID oids[]) {
+		if (oids.length == 1 && coalescer != null)
+			return this.getAsync(oids[0]);
+		return this.packPDUAndSendAsync(oids, PDU.GET);
+	}
 
-		logger.debug("Starting walk at OID " + oid.toString() + "...");
+	/**
+	 * Send a new asynchronous GET request for a single OID.
+	 * 
+	 * @param oid
+	 *            OID of the request.
+	 * @return Future completed with the variable bindings of the response, or
+	 *         exceptionally with a TimeoutException or SnmpErrorException
+	 */
+	public CompletableFuture<VariableBinding[]> getAsync(OID oid) {
+		if (coalescer == null)
+			return this.packPDUAndSendAsync(new OID[] { new OID(oid) },
+					PDU.GET);
+		// merged with other GETs sent to this device in the same window
+		return coalescer.get(oid).thenApply(
+				new Function<VariableBinding, VariableBinding[]>() {
+					public VariableBinding[] apply(VariableBinding vb) {
+						return new VariableBinding[] { vb };
+					}
+				});
+	}
 
-		final Vector<VariableBinding> snapshot = new Vector<VariableBinding>();
+	/**
+	 * Send a new asynchronous GETNEXT request for multiple OIDs.
+	 * 
+	 * @param oids
+	 *            Array of OID for the request.
+	 * @return Future completed with the variable bindings of the response, or
+	 *         exceptionally with a TimeoutException or SnmpErrorException
+	 */
+	public CompletableFuture<VariableBinding[]> getNextAsync(OID oids[]) {
+		return this.packPDUAndSendAsync(oids, PDU.GETNEXT);
+	}
 
-		final WalkCounts counts = new WalkCounts();
-		final long startTime = System.nanoTime();
+	/**
+	 * Send a new asynchronous SET request for multiple VariableBindings.
+	 * 
+	 * @param vbs
+	 *            Array of VariableBinding of the request
+	 * @return Future completed with the variable bindings of the response, or
+	 *         exceptionally with a TimeoutException or SnmpErrorException
+	 */
+	public CompletableFuture<VariableBinding[]> setAsync(VariableBinding[] vbs) {
+		return this.packPDUAndSendAsync(vbs, PDU.SET);
+	}
 
-		TreeUtils treeUtils = new TreeUtils(snmpInstance, this);
+	public VariableBinding[] walk(OID oid) {
+		return this.walkAsync(oid).join();
+	}
 
-		TreeListener treeListener = new TreeListener() {
+	/**
+	 * Asynchronous walk of the subtree rooted at the passed OID. The subtree is
+	 * retrieved with GETBULK requests whose max-repetitions value is learned
+	 * per device. As for walk, errors occurred during the walk are logged and
+	 * the variable bindings received up to that moment are returned.
+	 * 
+	 * @param oid
+	 *            Root of the subtree to walk
+	 * @return Future completed with the variable bindings of the subtree
+	 */
+	public CompletableFuture<VariableBinding[]> walkAsync(OID oid) {
+		final List<VariableBinding> snapshot = new ArrayList<VariableBinding>();
+		return this.walkAsync(oid, new WalkListener() {
+			public boolean onVariableBindings(VariableBinding[] vbs) {
+				snapshot.addAll(Arrays.asList(vbs));
+				return true;
+			}
+		}).thenApply(new Function<Integer, VariableBinding[]>() {
+			public VariableBinding[] apply(Integer count) {
+				return snapshot.toArray(new VariableBinding[snapshot.size()]);
+			}
+		});
+	}
 
-			private boolean finished;
+	/**
+	 * Streaming walk of the subtree rooted at the passed OID, blocking until
+	 * the walk is over. The variable bindings are handed to the listener as
+	 * they are received, without being retained by the client.
+	 * 
+	 * @param oid
+	 *            Root of the subtree to walk
+	 * @param listener
+	 *            Listener receiving the pages of variable bindings
+	 * @return number of variable bindings delivered to the listener
+	 */
+	public int walk(OID oid, WalkListener listener) {
+		return this.walkAsync(oid, listener).join();
+	}
 
-			public boolean next(TreeEvent e) {
-				counts.requests++;
+	/**
+	 * Asynchronous streaming walk of the subtree rooted at the passed OID.
+	 * Each GETBULK response is handed to the listener, the next request is
+	 * sent when the listener returns true. Errors occurred during the walk
+	 * are logged and end the walk as if the subtree was over.
+	 * 
+	 * @param oid
+	 *            Root of the subtree to walk
+	 * @param listener
+	 *            Listener receiving the pages of variable bindings
+	 * @return Future completed with the number of variable bindings delivered
+	 *         to the listener, or exceptionally with the exception thrown by
+	 *         the listener
+	 */
+	public CompletableFuture<Integer> walkAsync(OID oid, WalkListener listener) {
 
-				if (e.getVariableBindings() != null) {
-					VariableBinding[] vbs = e.getVariableBindings();
-					counts.objects += vbs.length;
-					for (VariableBinding vb : vbs)
-						snapshot.add(vb);
-				}
-				return true;
-			}
+		logger.debug("Starting walk at OID " + oid.toString() + "...");
 
-			public void finished(TreeEvent e) {
-				if ((e.getVariableBindings() != null)
-						&& (e.getVariableBindings().length > 0))
-					next(e);
+		BulkWalk walk = new BulkWalk(new OID[] { oid }, new OID[] { oid },
+				null, listener);
+		walk.next();
+		return walk.future;
+	}
 
-				logger.debug("Walk completed in "
-						+ (System.nanoTime() - startTime) / 1000000 + " ms, "
-						+ counts.objects + " objects received in "
-						+ counts.requests + " requests");
+	/**
+	 * Streaming walk of several columns of a table in lock-step, blocking
+	 * until the walk is over.
+	 * 
+	 * @see #walkColumnsAsync(OID[], WalkListener)
+	 */
+	public int walkColumns(OID[] columns, WalkListener listener) {
+		return this.walkColumnsAsync(columns, listener).join();
+	}
 
-				if (e.isError())
-					logger.debug("The following error occurred during walk: "
-							+ e.getErrorMessage());
+	/**
+	 * Asynchronous streaming walk of several columns of a table in lock-step.
+	 * Each GETBULK request carries one variable binding per column still to
+	 * be walked, so that a row of all the columns is retrieved with every
+	 * repetition. Columns ending before the others are dropped from the
+	 * following requests.
+	 * 
+	 * The variable bindings of each column are delivered in lexicographic
+	 * order, but the columns are interleaved within each page.
+	 * 
+	 * @param columns
+	 *            OIDs of the columns to walk
+	 * @param listener
+	 *            Listener receiving the pages of variable bindings
+	 * @return Future completed with the number of variable bindings delivered
+	 *         to the listener, or exceptionally with the exception thrown by
+	 *         the listener
+	 */
+	public CompletableFuture<Integer> walkColumnsAsync(OID[] columns,
+			WalkListener listener) {
 
-				finished = true;
+		logger.debug("Starting walk of columns " + Arrays.toString(columns)
+				+ "...");
 
-				synchronized (this) {
-					this.notify();
-				}
-			}
+		BulkWalk walk = new BulkWalk(columns, columns.clone(), null, listener);
+		walk.next();
+		return walk.future;
+	}
 
-			public boolean isFinished() {
-				return finished;
-			}
+	/**
+	 * Partitioned walk of the subtree rooted at the passed OID, blocking
+	 * until all the ranges have been walked.
+	 * 
+	 * @see #walkPartitionedAsync(OID, OID[])
+	 */
+	public VariableBinding[] walkPartitioned(OID oid, OID[] splitPoints) {
+		return this.walkPartitionedAsync(oid, splitPoints).join();
+	}
 
-		};
-		synchronized (treeListener) {
-			treeUtils
-					.getSubtree(getV3AuthPrivTarget(), oid, null, treeListener);
-			try {
-				treeListener.wait();
-			} catch (InterruptedException ex) {
-				logger.debug("Tree retrieval interrupted: " + ex.getMessage());
-				Thread.currentThread().interrupt();
-			}
+	/**
+	 * Walks the subtree rooted at the passed OID as disjoint ranges walked
+	 * concurrently, then merges them in lexicographic order. The split points
+	 * s1 < s2 < ... < sn define the ranges (oid, s1], (s1, s2], ..., (sn, end
+	 * of subtree], see WalkPartitions to build them. The number of requests
+	 * in flight is still bounded by the pipeline of the client.
+	 * 
+	 * The result is the same of walkAsync(oid): if a range ends with an
+	 * error, the variable bindings of the following ranges are discarded.
+	 * 
+	 * @param oid
+	 *            Root of the subtree to walk
+	 * @param splitPoints
+	 *            sorted OIDs inside the subtree
+	 * @return Future completed with the variable bindings of the subtree
+	 */
+	public CompletableFuture<VariableBinding[]> walkPartitionedAsync(OID oid,
+			OID[] splitPoints) {
+		for (int i = 0; i < splitPoints.length; i++) {
+			if (!splitPoints[i].startsWith(oid))
+				throw new IllegalArgumentException("Split point "
+						+ splitPoints[i] + " outside of subtree " + oid);
+			if (splitPoints[i].compareTo(i == 0 ? oid : splitPoints[i - 1]) <= 0)
+				throw new IllegalArgumentException("Split points not sorted at "
+						+ splitPoints[i]);
+		}
+
+		logger.debug("Starting partitioned walk at OID " + oid.toString()
+				+ ", " + (splitPoints.length + 1) + " ranges...");
+
+		final BulkWalk[] walks = new BulkWalk[splitPoints.length + 1];
+		final List<List<VariableBinding>> ranges = new ArrayList<List<VariableBinding>>(
+				walks.length);
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[walks.length];
+		for (int i = 0; i < walks.length; i++) {
+			final List<VariableBinding> range = new ArrayList<VariableBinding>();
+			ranges.add(range);
+			walks[i] = new BulkWalk(new OID[] { oid },
+					new OID[] { i == 0 ? oid : splitPoints[i - 1] },
+					i < splitPoints.length ? splitPoints[i] : null,
+					new WalkListener() {
+				public boolean onVariableBindings(VariableBinding[] vbs) {
+					range.addAll(Arrays.asList(vbs));
+					return true;
+				}
+			});
+			futures[i] = walks[i].future;
+			walks[i].next();
 		}
-		return snapshot.toArray(new VariableBinding[snapshot.size()]);
+
+		return CompletableFuture.allOf(futures).thenApply(
+				new Function<Void, VariableBinding[]>() {
+					public VariableBinding[] apply(Void v) {
+						List<VariableBinding> merged = new ArrayList<VariableBinding>();
+						for (int i = 0; i < walks.length; i++) {
+							merged.addAll(ranges.get(i));
+							// a sequential walk would have stopped here
+							if (walks[i].error != null)
+								break;
+						}
+						return merged.toArray(new VariableBinding[merged
+								.size()]);
+					}
+				});
+	}
+
+	/**
+	 * Returns the estimator of the max-repetitions value used for the GETBULK
+	 * requests of the walks sent to this device.
+	 * 
+	 * @return the MaxRepetitionsEstimator of this client
+	 */
+	public MaxRepetitionsEstimator getMaxRepetitions() {
+		return this.maxRepetitions;
 	}
 
 	public VariableBinding[] packPDUAndSend(OID[] oids, int pduType)
 			throws TimeoutException, SnmpErrorException {
+		return SnmpFutures.join(this.packPDUAndSendAsync(oids, pduType));
+	}
 
-		PDU pdu = new ScopedPDU();
-		for (OID oid : oids)
-			pdu.add(new VariableBinding(oid));
+	public VariableBinding[] packPDUAndSend(VariableBinding[] vbs, int pduType)
+			throws TimeoutException, SnmpErrorException {
+		return SnmpFutures.join(this.packPDUAndSendAsync(vbs, pduType));
+	}
+
+	/**
+	 * Send a request for the passed OIDs. If they don't fit a single message
+	 * of the agent the request is split in more PDUs, see PduPacker.
+	 */
+	public CompletableFuture<VariableBinding[]> packPDUAndSendAsync(
+			OID[] oids, int pduType) {
 
-		pdu.setType(pduType);
+		VariableBinding[] vbs = new VariableBinding[oids.length];
+		for (int i = 0; i < oids.length; i++)
+			vbs[i] = new VariableBinding(oids[i]);
 
-		return this.send(pdu);
+		return this.packPDUAndSendAsync(vbs, pduType);
 	}
 
-	public VariableBinding[] packPDUAndSend(VariableBinding[] vbs, int pduType)
-			throws TimeoutException, SnmpErrorException {
+	/**
+	 * Send a request for the passed variable bindings. If they don't fit a
+	 * single message of the agent the request is split in more PDUs, see
+	 * PduPacker.
+	 */
+	public CompletableFuture<VariableBinding[]> packPDUAndSendAsync(
+			VariableBinding[] vbs, int pduType) {
+		return this.packer.send(vbs, pduType);
+	}
+
+	/**
+	 * Returns the PduPacker of this client, to inspect the maximum message
+	 * size learned for the agent.
+	 * 
+	 * @return the PduPacker used to split the requests of this client
+	 */
+	public PduPacker getPduPacker() {
+		return this.packer;
+	}
+
+	/**
+	 * Returns the coalescer merging the single-OID GETs of this client.
+	 * 
+	 * @return the GetCoalescer of this client, null if COALESCE_WINDOW_MILLIS
+	 *         is not set
+	 */
+	public GetCoalescer getCoalescer() {
+		return this.coalescer;
+	}
+
+	/**
+	 * Send the PDU without blocking the caller. The returned future is
+	 * completed from the listener thread of the transport when the response
+	 * arrives or the request times out. If the in-flight window of the device
+	 * is full the request is queued and sent as soon as a slot is available.
+	 * When the rate limit of the device or the global one is exceeded the
+	 * request is delayed on the SnmpScheduler. If the circuit breaker of the
+	 * device is open the request fails at once with a CircuitOpenException.
+	 * 
+	 * @param pdu
+	 *            PDU to send
+	 * @return Future completed with the variable bindings of the response, or
+	 *         exceptionally with a TimeoutException or SnmpErrorException
+	 */
+	public CompletableFuture<VariableBinding[]> sendAsync(final PDU pdu) {
+		return sendAsync(pdu, true);
+	}
 
+	/**
+	 * Send a GET for a single OID, bypassing the coalescer, whose response is
+	 * not counted as a success by the circuit breaker: the caller checks its
+	 * content and reports the outcome itself with getCircuitBreaker(), e.g.
+	 * a health check. Timeouts are still counted as failures.
+	 * 
+	 * @param oid
+	 *            OID of the request
+	 * @return Future completed with the variable bindings of the response, or
+	 *         exceptionally with a TimeoutException or SnmpErrorException
+	 */
+	public CompletableFuture<VariableBinding[]> probeAsync(OID oid) {
 		PDU pdu = new ScopedPDU();
-		pdu.addAll(vbs);
+		pdu.add(new VariableBinding(new OID(oid)));
+		pdu.setType(PDU.GET);
+		return sendAsync(pdu, false);
+	}
 
-		pdu.setType(pduType);
+	private CompletableFuture<VariableBinding[]> sendAsync(final PDU pdu,
+			final boolean countSuccess) {
+		return pipeline
+				.submit(new Supplier<CompletableFuture<VariableBinding[]>>() {
+					public CompletableFuture<VariableBinding[]> get() {
+						if (!circuitBreaker.allowRequest())
+							return SnmpFutures
+									.failed(new CircuitOpenException(
+											getV3AuthPrivTarget().getAddress()));
+						return throttle(pdu).whenComplete(
+								new BiConsumer<VariableBinding[], Throwable>() {
+									public void accept(VariableBinding[] vbs,
+											Throwable ex) {
+										updateCircuitBreaker(ex, countSuccess);
+									}
+								});
+					}
+				});
+	}
 
-		return this.send(pdu);
+	/**
+	 * Any response, even an SNMP error, proves the agent alive. Local errors
+	 * (an SnmpErrorException without error-status, e.g. too many pending
+	 * requests) say nothing about the agent and are not counted. Anything
+	 * else means that the agent could not be reached.
+	 */
+	private void updateCircuitBreaker(Throwable ex, boolean countSuccess) {
+		ex = ex == null ? null : SnmpFutures.unwrap(ex);
+		if (ex instanceof SnmpErrorException) {
+			if (((SnmpErrorException) ex).getErrorStatus() >= 0
+					&& countSuccess)
+				circuitBreaker.onSuccess();
+		} else if (ex == null) {
+			if (countSuccess)
+				circuitBreaker.onSuccess();
+		} else
+			circuitBreaker.onFailure();
 	}
 
-	private synchronized VariableBinding[] send(PDU pdu)
-			throws TimeoutException, SnmpErrorException {
+	/**
+	 * Transmits the PDU once the rate limiters allow it. The delayed request
+	 * keeps its slot of the pipeline, so that requests queued behind it are
+	 * not reordered.
+	 */
+	private CompletableFuture<VariableBinding[]> throttle(final PDU pdu) {
+		RateLimiter globalRateLimiter = getGlobalRateLimiter();
+		if (!rateLimiter.isLimited() && !globalRateLimiter.isLimited())
+			return transmit(pdu);
+
+		int size = estimateTrafficSize(pdu);
+		long delay = Math.max(rateLimiter.reserve(size),
+				globalRateLimiter.reserve(size));
+		if (delay <= 0)
+			return transmit(pdu);
+
+		logger.trace("Request delayed by rate limit, "
+				+ TimeUnit.NANOSECONDS.toMillis(delay) + " ms");
+		final CompletableFuture<VariableBinding[]> future = new CompletableFuture<VariableBinding[]>();
+		SnmpScheduler.get().schedule(new Runnable() {
+			public void run() {
+				transmit(pdu).whenComplete(
+						new BiConsumer<VariableBinding[], Throwable>() {
+							public void accept(VariableBinding[] vbs,
+									Throwable ex) {
+								if (ex != null)
+									future.completeExceptionally(ex);
+								else
+									future.complete(vbs);
+							}
+						});
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+		return future;
+	}
 
-		ResponseEvent event = null;
+	/**
+	 * Estimates the bytes exchanged with the agent for the passed PDU. The
+	 * response is usually the largest part, a GETBULK counts once for each
+	 * repetition.
+	 */
+	private static int estimateTrafficSize(PDU pdu) {
+		VariableBinding[] vbs = pdu.toArray();
+		int size = PduPacker.estimateSize(vbs, 0, vbs.length, pdu.getType());
+		if (pdu.getType() != PDU.GETBULK)
+			return size;
+		int repetition = size - PduPacker.MESSAGE_OVERHEAD;
+		return PduPacker.MESSAGE_OVERHEAD + repetition
+				* Math.max(1, pdu.getMaxRepetitions());
+	}
+
+	private CompletableFuture<VariableBinding[]> transmit(PDU pdu) {
 
 		/*
 		 * Well, it's now time to send a new SNMP message! Set the RequestID of
-		 * the PDU and increment the counter for the next operation.
+		 * the PDU, it is used to correlate the response to this request.
 		 */
-		pdu.setRequestID(new Integer32(requestID));
-		requestID++;
+		int id = nextRequestID();
+		pdu.setRequestID(new Integer32(id));
 
 		/*
 		 * The PDU is now ready to be sent
@@ -350,14 +798,52 @@ public class SnmpClient implements PDUFactory {
 		 * transmission and the end of the response reception, for debug
 		 * purpose.s
 		 */
-		long startTime = System.nanoTime();
+		PendingRequest request = new PendingRequest(this, pdu, target,
+				System.nanoTime());
+
+		long deadline = request.startTime
+				+ (snmpInstance.getTimeoutModel().getRequestTimeout(
+						target.getRetries(), target.getTimeout()) + SWEEP_GRACE_MILLIS)
+				* 1000000;
+		if (!pendingRequests.put(id, request, deadline)) {
+			logger.error("Too many pending requests, request " + id
+					+ " dropped");
+			return SnmpFutures.failed(new SnmpErrorException(
+					"Too many pending requests"));
+		}
+
 		try {
-			event = snmpInstance.send(pdu, target, null);
+			snmpInstance.send(pdu, target, null, RESPONSE_LISTENER);
 		} catch (IOException e) {
 			logger.fatal("IOException while sending a new SNMP message", e);
 			System.exit(-1);
 		}
-		long timeElapsed = System.nanoTime() - startTime;
+		return request.future;
+	}
+
+	private void complete(PendingRequest request, ResponseEvent event) {
+		long timeElapsed = System.nanoTime() - request.startTime;
+		try {
+			request.future.complete(processResponse(event, request.target,
+					timeElapsed));
+		} catch (Exception e) {
+			request.future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Returns the number of requests, of all the clients, waiting for a
+	 * response.
+	 * 
+	 * @return size of the pending request table
+	 */
+	public static int getPendingRequestsCount() {
+		return pendingRequests.size();
+	}
+
+	private VariableBinding[] processResponse(ResponseEvent event,
+			Target target, long timeElapsed) throws TimeoutException,
+			SnmpErrorException {
 
 		/*
 		 * If response != null means that no timeout has occurred and a response
@@ -372,11 +858,19 @@ public class SnmpClient implements PDUFactory {
 			logger.debug("Response received from " + event.getPeerAddress()
 					+ " in " + timeElapsed / 1000000 + " ms >> " + response);
 
+			rttEstimator.onResponse(timeElapsed / 1000000, target.getTimeout());
+
 			/*
 			 * Check for common SNMP errors due to failed request
 			 */
 			if (response.getErrorStatus() == PDU.noError) {
 
+				// remember engine ID and keys of the agent for the next start
+				if (!engineCached
+						&& SnmpTransportPool.getEngineCache() != null)
+					engineCached = SnmpTransportPool.getEngineCache().learn(
+							snmpInstance, target.getAddress());
+
 				/*
 				 * Let's finally return the event, this could still contain a
 				 * SnmpSyntaxException (noSuchInstance, noSuchObject or
@@ -393,26 +887,209 @@ public class SnmpClient implements PDUFactory {
 				 * TODO Net-Snmp REPORT for failed authentication
 				 */
 				logger.error("SNMP ERROR >> " + response.getErrorStatusText());
-				throw new SnmpErrorException(response.getErrorStatusText());
+				throw new SnmpErrorException(response.getErrorStatusText(),
+						response.getErrorStatus());
 			}
 		}
 
+		if (event.getError() != null)
+			logger.error("Error while waiting for the response from "
+					+ target.getAddress() + " >> " + event.getError());
+
 		/*
 		 * If here means that response == null, REQUEST TIME OUT!
 		 */
+		rttEstimator.onTimeout();
 		logger.error("Request TIMEOUT! No response received from "
 				+ target.getAddress());
 		throw new TimeoutException(target.getAddress());
 
 	}
 
+	private static int nextRequestID() {
+		int id;
+		// 0 means "not set" for snmp4j, which would replace it
+		while ((id = requestID.incrementAndGet()) == 0)
+			;
+		return id;
+	}
+
+	/**
+	 * A request waiting for its response in the pending request table.
+	 */
+	private static class PendingRequest {
+		final SnmpClient client;
+		final PDU pdu;
+		final Target target;
+		final long startTime;
+		final CompletableFuture<VariableBinding[]> future = new CompletableFuture<VariableBinding[]>();
+
+		PendingRequest(SnmpClient client, PDU pdu, Target target,
+				long startTime) {
+			this.client = client;
+			this.pdu = pdu;
+			this.target = target;
+			this.startTime = startTime;
+		}
+	}
+
 	public PDU createPDU(Target target) {
 		return new ScopedPDU();
 	}
 
-	private class WalkCounts {
-		public int requests;
-		public int objects;
+	/**
+	 * State of a GETBULK walk of one or more subtrees in lock-step. Each
+	 * response is handed to the listener, then triggers the next request from
+	 * the last OID received for each subtree, until the end of all the
+	 * subtrees is reached or the listener stops the walk. When a limit is
+	 * given the walk stops after it, to walk a single range of a subtree.
+	 */
+	private class BulkWalk {
+
+		private final OID[] roots;
+		private final OID[] last;
+		private final OID limit;
+		private final WalkListener listener;
+		private final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+		private final long startTime = System.nanoTime();
+		// indexes of the subtrees not yet over
+		private int[] active;
+		private int received;
+		private int requests;
+		private boolean timeoutRetried;
+		private String error;
+
+		BulkWalk(OID[] roots, OID[] from, OID limit, WalkListener listener) {
+			this.roots = roots;
+			this.last = from;
+			this.limit = limit;
+			this.listener = listener;
+			this.active = new int[roots.length];
+			for (int i = 0; i < active.length; i++)
+				active[i] = i;
+		}
+
+		void next() {
+			final int[] columns = active;
+			final int repetitions = Math.max(1, maxRepetitions.get()
+					/ columns.length);
+			PDU pdu = new ScopedPDU();
+			pdu.setType(PDU.GETBULK);
+			pdu.setNonRepeaters(0);
+			pdu.setMaxRepetitions(repetitions);
+			for (int c : columns)
+				pdu.add(new VariableBinding(last[c]));
+			requests++;
+
+			sendAsync(pdu).whenComplete(
+					new BiConsumer<VariableBinding[], Throwable>() {
+						public void accept(VariableBinding[] vbs, Throwable ex) {
+							if (ex != null)
+								onError(SnmpFutures.unwrap(ex));
+							else
+								onResponse(columns, repetitions, vbs);
+						}
+					});
+		}
+
+		private void onResponse(int[] columns, int repetitions,
+				VariableBinding[] vbs) {
+			maxRepetitions.onResponse(repetitions, vbs.length / columns.length,
+					columns.length);
+
+			// keep the part of the response inside each subtree
+			boolean[] over = new boolean[columns.length];
+			int n = 0;
+			String error = null;
+			VariableBinding[] page = new VariableBinding[vbs.length];
+			for (int i = 0; i < vbs.length && error == null; i++) {
+				int j = i % columns.length;
+				if (over[j])
+					continue;
+				int c = columns[j];
+				VariableBinding vb = vbs[i];
+				if (vb.getVariable().getSyntax() == SMIConstants.EXCEPTION_END_OF_MIB_VIEW
+						|| !vb.getOid().startsWith(roots[c])
+						|| (limit != null && vb.getOid().compareTo(limit) > 0)) {
+					over[j] = true;
+					continue;
+				}
+				if (vb.getOid().compareTo(last[c]) <= 0) {
+					error = "OID not increasing " + vb.getOid() + " <= "
+							+ last[c];
+					break;
+				}
+				last[c] = vb.getOid();
+				page[n++] = vb;
+			}
+
+			int stillActive = 0;
+			for (int j = 0; j < columns.length; j++)
+				if (!over[j])
+					stillActive++;
+			active = new int[stillActive];
+			for (int j = 0, k = 0; j < columns.length; j++)
+				if (!over[j])
+					active[k++] = columns[j];
+
+			boolean stop = error != null || vbs.length == 0
+					|| active.length == 0;
+			if (n > 0) {
+				received += n;
+				try {
+					if (!listener.onVariableBindings(n == vbs.length ? page
+							: Arrays.copyOf(page, n)))
+						stop = true;
+				} catch (RuntimeException e) {
+					logger.debug("Walk aborted by the listener >> " + e);
+					future.completeExceptionally(e);
+					return;
+				}
+			}
+
+			if (stop)
+				finish(error);
+			else
+				next();
+		}
+
+		private void onError(Throwable ex) {
+			if (ex instanceof SnmpErrorException
+					&& ((SnmpErrorException) ex).getErrorStatus() == PDU.tooBig
+					&& maxRepetitions.onTooBig()) {
+				logger.debug("GETBULK response too big, retrying with "
+						+ maxRepetitions);
+				next();
+				return;
+			}
+			/*
+			 * Retry once with fewer repetitions only if the device already
+			 * answered during this walk, a dead device would stall twice.
+			 */
+			if (ex instanceof TimeoutException && !timeoutRetried
+					&& requests > 1 && maxRepetitions.onTimeout()) {
+				timeoutRetried = true;
+				logger.debug("GETBULK request timed out, retrying with "
+						+ maxRepetitions);
+				next();
+				return;
+			}
+			finish(ex.getMessage());
+		}
+
+		private void finish(String error) {
+			logger.debug("Walk completed in "
+					+ (System.nanoTime() - startTime) / 1000000 + " ms, "
+					+ received + " objects received in " + requests
+					+ " requests");
+
+			if (error != null)
+				logger.debug("The following error occurred during walk: "
+						+ error);
+
+			this.error = error;
+			future.complete(received);
+		}
 	}
 
 }
@@ -7,8 +7,23 @@ public class SnmpErrorException extends Exception {
 	 */
 	private static final long serialVersionUID = 1304907512926256963L;
 
+	private int errorStatus = -1;
+
 	public SnmpErrorException(String errorStatusText) {
 		super(errorStatusText);
 	}
 
+	public SnmpErrorException(String errorStatusText, int errorStatus) {
+		super(errorStatusText);
+		this.errorStatus = errorStatus;
+	}
+
+	/**
+	 * @return the error-status of the response PDU (e.g. PDU.tooBig), -1 if
+	 *         unknown
+	 */
+	public int getErrorStatus() {
+		return this.errorStatus;
+	}
+
 }
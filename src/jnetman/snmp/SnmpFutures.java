@@ -0,0 +1,93 @@
+package jnetman.snmp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Helper methods to move between the asynchronous (CompletableFuture based)
+ * and the blocking API, translating the exceptions used to complete the
+ * futures back to the checked exceptions of this package.
+ */
+public final class SnmpFutures {
+
+	private SnmpFutures() {
+	}
+
+	/**
+	 * Returns a future already completed with the passed exception.
+	 */
+	public static <T> CompletableFuture<T> failed(Throwable ex) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(ex);
+		return future;
+	}
+
+	/**
+	 * Returns the exception wrapped by CompletionException or
+	 * ExecutionException, if any.
+	 */
+	public static Throwable unwrap(Throwable ex) {
+		while ((ex instanceof CompletionException || ex instanceof ExecutionException)
+				&& ex.getCause() != null)
+			ex = ex.getCause();
+		return ex;
+	}
+
+	/**
+	 * Waits for the future to complete and returns its result.
+	 *
+	 * @throws TimeoutException
+	 *             If the future completed with a TimeoutException
+	 * @throws SnmpErrorException
+	 *             If the future completed with a SnmpErrorException
+	 */
+	public static <T> T join(CompletableFuture<T> future)
+			throws TimeoutException, SnmpErrorException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = unwrap(e);
+			if (cause instanceof TimeoutException)
+				throw (TimeoutException) cause;
+			if (cause instanceof SnmpErrorException)
+				throw (SnmpErrorException) cause;
+			throw propagate(cause);
+		}
+	}
+
+	/**
+	 * Waits for the future to complete and returns its result.
+	 *
+	 * @throws TimeoutException
+	 *             If the future completed with a TimeoutException
+	 * @throws SnmpErrorException
+	 *             If the future completed with a SnmpErrorException
+	 * @throws SnmpSyntaxException
+	 *             If the future completed with a SnmpSyntaxException
+	 */
+	public static <T> T joinChecked(CompletableFuture<T> future)
+			throws TimeoutException, SnmpErrorException, SnmpSyntaxException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = unwrap(e);
+			if (cause instanceof TimeoutException)
+				throw (TimeoutException) cause;
+			if (cause instanceof SnmpErrorException)
+				throw (SnmpErrorException) cause;
+			if (cause instanceof SnmpSyntaxException)
+				throw (SnmpSyntaxException) cause;
+			throw propagate(cause);
+		}
+	}
+
+	private static RuntimeException propagate(Throwable cause) {
+		if (cause instanceof RuntimeException)
+			return (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		return new CompletionException(cause);
+	}
+
+}
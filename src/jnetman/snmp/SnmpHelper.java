@@ -1,6 +1,13 @@
 package jnetman.snmp;
 
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import jnetman.session.SnmpPref;
 
 import org.apache.log4j.Logger;
 import org.snmp4j.smi.AbstractVariable;
@@ -22,10 +29,26 @@ public class SnmpHelper {
 	private SnmpClient snmpClient;
 	protected Logger logger;
 
+	// identical requests in flight to the device are sent only once
+	private final SingleFlight<ResponseCache.Key, VariableBinding[]> getFlights = new SingleFlight<ResponseCache.Key, VariableBinding[]>();
+	private final SingleFlight<ResponseCache.Key, VariableBinding[]> walkFlights = new SingleFlight<ResponseCache.Key, VariableBinding[]>();
+	private final SingleFlight<ResponseCache.Key, Table> tableFlights = new SingleFlight<ResponseCache.Key, Table>();
+	private final ResponseCache cache;
+
 	public SnmpHelper(SnmpClient snmpClient) {
 		this.snmpClient = snmpClient;
 		logger = Logger.getLogger("snmp.snmpHelper."
 				+ snmpClient.getNetworkDevice().getName());
+
+		// objects that almost never change
+		cache = new ResponseCache(snmpClient.getNetworkDevice().getName(),
+				SnmpPref.getResponseCacheSize());
+		long ttl = SnmpPref.getResponseCacheTtl();
+		cache.setTtl(MIB.sysDescr, ttl);
+		cache.setTtl(MIB.IfIndex, ttl);
+		cache.setTtl(MIB.IfDescr, ttl);
+		cache.setTtl(MIB.IfType, ttl);
+		cache.setTtl(MIB.IpAddrTable, ttl);
 		logger.debug("New Snmp helper created");
 	}
 
@@ -35,7 +58,7 @@ public class SnmpHelper {
 
 	public Variable[] getVariable(OID[] oids) throws TimeoutException,
 			SnmpErrorException, SnmpSyntaxException {
-		VariableBinding[] vbs = this.snmpClient.get(oids);
+		VariableBinding[] vbs = SnmpFutures.join(getVariableBindingsAsync(oids));
 		Variable[] vs = new Variable[vbs.length];
 		for (int i = 0; i < vbs.length; i++) {
 			SnmpSyntaxException.checkForExceptions(vbs[i]);
@@ -49,6 +72,157 @@ public class SnmpHelper {
 		return getVariable(new OID[] { oid })[0];
 	}
 
+	/**
+	 * Asynchronous version of getVariable. The returned future is completed
+	 * exceptionally with a TimeoutException, SnmpErrorException or
+	 * SnmpSyntaxException where the blocking version would throw them.
+	 */
+	public CompletableFuture<Variable[]> getVariableAsync(OID[] oids) {
+		return getVariableBindingsAsync(oids).thenApply(
+				new Function<VariableBinding[], Variable[]>() {
+					public Variable[] apply(VariableBinding[] vbs) {
+						Variable[] vs = new Variable[vbs.length];
+						for (int i = 0; i < vbs.length; i++) {
+							if (vbs[i].getVariable().isException())
+								throw new CompletionException(
+										new SnmpSyntaxException(vbs[i]));
+							vs[i] = vbs[i].getVariable();
+						}
+						return vs;
+					}
+				});
+	}
+
+	/**
+	 * Sends a GET for the passed OIDs, or joins an identical GET already in
+	 * flight to the device, or returns the cached response. The returned
+	 * array is shared with the other callers and must not be modified.
+	 */
+	public CompletableFuture<VariableBinding[]> getVariableBindingsAsync(
+			final OID[] oids) {
+		return cachedFlight(getFlights, new ResponseCache.Key("get", oids),
+				new Supplier<CompletableFuture<VariableBinding[]>>() {
+					public CompletableFuture<VariableBinding[]> get() {
+						return snmpClient.getAsync(oids).thenApply(
+								new Function<VariableBinding[], VariableBinding[]>() {
+									public VariableBinding[] apply(
+											VariableBinding[] vbs) {
+										checkSysUpTime(vbs);
+										return vbs;
+									}
+								});
+					}
+				});
+	}
+
+	/**
+	 * Walks the subtree rooted at the passed OID, or joins an identical walk
+	 * already in flight to the device, or returns the cached response. The
+	 * returned array is shared with the other callers and must not be
+	 * modified.
+	 */
+	public CompletableFuture<VariableBinding[]> walkAsync(final OID oid) {
+		return cachedFlight(walkFlights, new ResponseCache.Key("walk", oid),
+				new Supplier<CompletableFuture<VariableBinding[]>>() {
+					public CompletableFuture<VariableBinding[]> get() {
+						return snmpClient.walkAsync(oid);
+					}
+				});
+	}
+
+	/**
+	 * Returns the cached response for the key if any, otherwise sends the
+	 * request through the passed single flight and caches its response, if
+	 * cacheable.
+	 */
+	@SuppressWarnings("unchecked")
+	private <V> CompletableFuture<V> cachedFlight(
+			SingleFlight<ResponseCache.Key, V> flights,
+			final ResponseCache.Key key,
+			final Supplier<CompletableFuture<V>> request) {
+		// no lookup for the responses that can never be cached
+		if (!cache.isCacheable(key))
+			return flights.execute(key, request);
+		Object cached = cache.get(key);
+		if (cached != null) {
+			logger.trace("Response found in cache >> " + key);
+			return CompletableFuture.completedFuture((V) cached);
+		}
+		return flights.execute(key, new Supplier<CompletableFuture<V>>() {
+			public CompletableFuture<V> get() {
+				// responses to requests sent before a SET are not cached
+				final long generation = cache.getGeneration();
+				return request.get().thenApply(new Function<V, V>() {
+					public V apply(V v) {
+						cache.put(key, v, generation);
+						return v;
+					}
+				});
+			}
+		});
+	}
+
+	private void checkSysUpTime(VariableBinding[] vbs) {
+		for (VariableBinding vb : vbs)
+			if (vb.getOid().equals(MIB.sysUptime)
+					&& vb.getVariable() instanceof TimeTicks)
+				cache.onSysUpTime(((TimeTicks) vb.getVariable()).getValue());
+	}
+
+	/**
+	 * Returns the cache of the responses of this device, to read its
+	 * statistics or to change the TTL of a subtree.
+	 * 
+	 * @return the ResponseCache of this helper
+	 */
+	public ResponseCache getResponseCache() {
+		return this.cache;
+	}
+
+	/**
+	 * @return number of GETs, walks and table retrievals that joined an
+	 *         identical one already in flight instead of being sent
+	 */
+	public long getSingleFlightSavedCount() {
+		return getFlights.getSavedCount() + walkFlights.getSavedCount()
+				+ tableFlights.getSavedCount();
+	}
+
+	public CompletableFuture<Variable> getVariableAsync(OID oid) {
+		return getVariableAsync(new OID[] { oid }).thenApply(
+				new Function<Variable[], Variable>() {
+					public Variable apply(Variable[] vs) {
+						return vs[0];
+					}
+				});
+	}
+
+	public CompletableFuture<Integer> getIntAsync(OID oid) {
+		return getVariableAsync(oid).thenApply(
+				new Function<Variable, Integer>() {
+					public Integer apply(Variable v) {
+						return v.toInt();
+					}
+				});
+	}
+
+	public CompletableFuture<Long> getLongAsync(OID oid) {
+		return getVariableAsync(oid).thenApply(new Function<Variable, Long>() {
+			public Long apply(Variable v) {
+				return v.toLong();
+			}
+		});
+	}
+
+	public CompletableFuture<String> getStringAsync(OID oid) {
+		return getVariableAsync(oid).thenApply(
+				new Function<Variable, String>() {
+					public String apply(Variable v) {
+						return v.toString();
+					}
+				});
+	}
+
 	public TimedValues getAsTimedValues(OID[] oids) throws TimeoutException,
 			SnmpErrorException, SnmpSyntaxException {
 		return new TimedValues(oids, this);
@@ -114,6 +288,41 @@ public class SnmpHelper {
 		return res;
 	}
 
+	/**
+	 * Asynchronous version of setVariableBinding.
+	 */
+	public CompletableFuture<boolean[]> setVariableBindingAsync(
+			final VariableBinding[] vbs) {
+		invalidate(vbs);
+		return snmpClient.setAsync(vbs).whenComplete(
+				new BiConsumer<VariableBinding[], Throwable>() {
+					public void accept(VariableBinding[] resVbs, Throwable ex) {
+						// requests sent while the SET was in flight may have
+						// read the old values
+						invalidate(vbs);
+					}
+				}).thenApply(
+				new Function<VariableBinding[], boolean[]>() {
+					public boolean[] apply(VariableBinding[] resVbs) {
+						boolean[] res = new boolean[vbs.length];
+						for (int i = 0; i < vbs.length; i++) {
+							if (resVbs[i].getVariable().isException())
+								throw new CompletionException(
+										new SnmpSyntaxException(resVbs[i]));
+							res[i] = resVbs[i].getOid().equals(vbs[i].getOid())
+									&& resVbs[i].getVariable().equals(
+											vbs[i].getVariable());
+						}
+						return res;
+					}
+				});
+	}
+
+	private void invalidate(VariableBinding[] vbs) {
+		for (VariableBinding vb : vbs)
+			cache.invalidate(vb.getOid());
+	}
+
 	public boolean setVariableBinding(VariableBinding vb)
 			throws TimeoutException, SnmpErrorException, SnmpSyntaxException {
 		return setVariableBinding(new VariableBinding[] { vb })[0];
@@ -239,36 +448,123 @@ public class SnmpHelper {
 	}
 
 	public Table getTable(OID tableOid) {
-		logger.trace("Table retrieval started");
-
-		VariableBinding[] vbs = snmpClient.walk(tableOid);
-
-		Table table = new Table();
+		return getTableAsync(tableOid).join();
+	}
+
+	/**
+	 * Asynchronous version of getTable. Rows are filled while the walk is in
+	 * progress, the variable bindings of the table are never held all
+	 * together. Joins an identical retrieval already in flight, or copies
+	 * the cached Table: each caller gets its own copy and may modify it.
+	 */
+	public CompletableFuture<Table> getTableAsync(final OID tableOid) {
+		return cachedFlight(tableFlights,
+				new ResponseCache.Key("table", tableOid),
+				new Supplier<CompletableFuture<Table>>() {
+					public CompletableFuture<Table> get() {
+						return retrieveTable(tableOid);
+					}
+				}).thenApply(COPY_TABLE);
+	}
+
+	/*
+	 * The cached or joined Table is shared, the callers get a copy of it.
+	 */
+	private static final Function<Table, Table> COPY_TABLE = new Function<Table, Table>() {
+		public Table apply(Table table) {
+			return new Table(table);
+		}
+	};
 
-		int[] subIdxArr;
-		int[] colIdArr;
-		OID subIdxOid;
-		OID colIdOid;
+	private CompletableFuture<Table> retrieveTable(final OID tableOid) {
+		logger.trace("Table retrieval started");
 
-		for (VariableBinding vb : vbs) {
-			if (vb.getOid().leftMostCompare(tableOid.size(), tableOid) != 0) {
-				logger.warn("The following OID doesn't seems to belong to table "
-						+ vb);
-				continue;
+		final Table table = new Table();
+		return snmpClient.walkAsync(tableOid, new WalkListener() {
+			public boolean onVariableBindings(VariableBinding[] vbs) {
+				for (VariableBinding vb : vbs)
+					putVariableBinding(table, tableOid, vb);
+				return true;
 			}
-			// extract the last part of the OID, the index
-			subIdxArr = Arrays.copyOfRange(vb.getOid().toIntArray(),
-					tableOid.size() + 2, vb.getOid().size());
-			subIdxOid = new OID(subIdxArr);
-			// extract the first part of the OID, the column
-			colIdArr = Arrays.copyOfRange(vb.getOid().toIntArray(), 0,
-					tableOid.size() + 2);
-			colIdOid = new OID(colIdArr);
-			logger.trace("Index = " + subIdxOid + "; Column = " + colIdOid);
-			table.putVariable(subIdxOid, colIdOid, vb.getVariable());
-		}
+		}).thenApply(new Function<Integer, Table>() {
+			public Table apply(Integer count) {
+				return table;
+			}
+		});
+	}
+
+	/**
+	 * Retrieves only the passed columns of a table, walked in lock-step so
+	 * that each GETBULK request returns the same rows of all the columns.
+	 * 
+	 * @param tableOid
+	 *            OID of the table
+	 * @param columns
+	 *            OIDs of the columns to retrieve, e.g. MIB.IfDescr
+	 * @return a Table whose rows contain only the requested columns
+	 */
+	public Table getTable(OID tableOid, OID... columns) {
+		return getTableAsync(tableOid, columns).join();
+	}
+
+	/**
+	 * Asynchronous version of getTable(OID, OID...). Joins an identical
+	 * retrieval already in flight, or copies the cached Table: each caller
+	 * gets its own copy and may modify it.
+	 */
+	public CompletableFuture<Table> getTableAsync(final OID tableOid,
+			final OID... columns) {
+		if (columns.length == 0)
+			return getTableAsync(tableOid);
+		// the columns identify the table
+		return cachedFlight(tableFlights, new ResponseCache.Key("table",
+				columns),
+				new Supplier<CompletableFuture<Table>>() {
+					public CompletableFuture<Table> get() {
+						return retrieveTable(tableOid, columns);
+					}
+				}).thenApply(COPY_TABLE);
+	}
+
+	private CompletableFuture<Table> retrieveTable(final OID tableOid,
+			OID[] columns) {
+		for (OID column : columns)
+			if (column.size() != tableOid.size() + 2
+					|| !column.startsWith(tableOid))
+				throw new IllegalArgumentException(column
+						+ " is not a column of table " + tableOid);
+
+		logger.trace("Retrieval of " + columns.length + " table columns started");
+
+		final Table table = new Table();
+		return snmpClient.walkColumnsAsync(columns, new WalkListener() {
+			public boolean onVariableBindings(VariableBinding[] vbs) {
+				for (VariableBinding vb : vbs)
+					putVariableBinding(table, tableOid, vb);
+				return true;
+			}
+		}).thenApply(new Function<Integer, Table>() {
+			public Table apply(Integer count) {
+				return table;
+			}
+		});
+	}
 
-		return table;
+	private void putVariableBinding(Table table, OID tableOid,
+			VariableBinding vb) {
+		if (vb.getOid().leftMostCompare(tableOid.size(), tableOid) != 0) {
+			logger.warn("The following OID doesn't seems to belong to table "
+					+ vb);
+			return;
+		}
+		// extract the last part of the OID, the index
+		OID subIdxOid = new OID(Arrays.copyOfRange(vb.getOid().toIntArray(),
+				tableOid.size() + 2, vb.getOid().size()));
+		// extract the first part of the OID, the column
+		OID colIdOid = new OID(Arrays.copyOfRange(vb.getOid().toIntArray(), 0,
+				tableOid.size() + 2));
+		logger.trace("Index = " + subIdxOid + "; Column = " + colIdOid);
+		table.putVariable(subIdxOid, colIdOid, vb.getVariable());
 	}
 
 	public static int castToInt(Variable variable) {
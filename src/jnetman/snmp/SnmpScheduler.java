@@ -0,0 +1,31 @@
+package jnetman.snmp;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Single daemon thread shared by the SNMP layer to run short delayed tasks,
+ * e.g. flushing batches of coalesced requests. Tasks must never block.
+ */
+public final class SnmpScheduler {
+
+	private static ScheduledExecutorService scheduler;
+
+	private SnmpScheduler() {
+	}
+
+	public static synchronized ScheduledExecutorService get() {
+		if (scheduler == null)
+			scheduler = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "SnmpScheduler");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		return scheduler;
+	}
+
+}
@@ -0,0 +1,207 @@
+package jnetman.snmp;
+
+import java.io.IOException;
+
+import jnetman.network.NetworkDevice;
+import jnetman.session.Session;
+import jnetman.session.SnmpPref;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.Snmp;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.log.Log4jLogFactory;
+import org.snmp4j.log.LogFactory;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.security.AuthMD5;
+import org.snmp4j.security.PrivDES;
+import org.snmp4j.security.SecurityModels;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.security.USM;
+import org.snmp4j.security.UsmUser;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+/**
+ * Small pool of SNMP sessions shared by all the SnmpClients. Each session owns
+ * a single UDP socket and listener thread, the requests of many devices are
+ * multiplexed over it and responses are correlated back to their request by
+ * the message dispatcher. The number of sockets and threads thus depends only
+ * on TRANSPORT_POOL_SIZE and not on the number of nodes in the network.
+ *
+ * A single USM, with the jnetman user, is registered once and shared by all
+ * the sessions and the trap receiver. It can be registered alone, without
+ * creating the sessions.
+ */
+public class SnmpTransportPool {
+
+	static Logger logger = Logger.getLogger("snmp.snmpTransportPool");
+
+	/**
+	 * Maximum UDP payload, size of the buffers of the NIO transports.
+	 */
+	public static final int MAX_DATAGRAM_SIZE = 65535;
+
+	private static Snmp[] sessions;
+	private static NioEventLoop[] eventLoops;
+	private static BufferPool bufferPool;
+	private static USM usm;
+	private static EngineCache engineCache;
+
+	private SnmpTransportPool() {
+	}
+
+	/**
+	 * Returns the shared Snmp session to be used for the passed device. The
+	 * same device is always mapped to the same session.
+	 *
+	 * @param device
+	 *            NetworkDevice that will use the session
+	 * @return Snmp session shared with other devices
+	 */
+	public static synchronized Snmp getSnmp(NetworkDevice device) {
+		if (sessions == null)
+			init();
+		int i = (device.getName().hashCode() & Integer.MAX_VALUE)
+				% sessions.length;
+		return sessions[i];
+	}
+
+	/**
+	 * Returns the USM shared by all the sessions and the trap receiver,
+	 * registering it if needed. The sessions of the pool are not created.
+	 *
+	 * @return the shared USM
+	 */
+	public static synchronized USM getUSM() {
+		if (usm == null)
+			initUSM();
+		return usm;
+	}
+
+	/**
+	 * Returns the cache of the engine IDs and localized keys of the agents.
+	 *
+	 * @return the EngineCache, null if ENGINE_CACHE_ENABLED is false
+	 */
+	public static synchronized EngineCache getEngineCache() {
+		if (sessions == null)
+			init();
+		return engineCache;
+	}
+
+	/**
+	 * Returns the pool of direct buffers shared by the NIO transports.
+	 *
+	 * @return the shared BufferPool
+	 */
+	public static synchronized BufferPool getBufferPool() {
+		if (bufferPool == null)
+			bufferPool = new BufferPool(MAX_DATAGRAM_SIZE,
+					SnmpPref.getBufferPoolSize());
+		return bufferPool;
+	}
+
+	/**
+	 * Returns the number of sessions in the pool.
+	 *
+	 * @return the pool size, 0 if the pool has not been created yet
+	 */
+	public static synchronized int size() {
+		return sessions == null ? 0 : sessions.length;
+	}
+
+	/**
+	 * Closes all the sessions of the pool, releasing sockets and threads. A
+	 * new pool will be created on the next call to getSnmp.
+	 */
+	public static synchronized void close() {
+		if (sessions == null)
+			return;
+		if (engineCache != null)
+			engineCache.save();
+		for (Snmp snmp : sessions)
+			try {
+				snmp.close();
+			} catch (IOException e) {
+				logger.warn("IOException while closing SNMP session", e);
+			}
+		sessions = null;
+		if (eventLoops != null)
+			for (NioEventLoop loop : eventLoops)
+				loop.close();
+		eventLoops = null;
+		logger.debug("Transport pool closed");
+	}
+
+	/**
+	 * Registers the USM, kept across close and re-creation of the pool.
+	 */
+	private static void initUSM() {
+		// If activated SNMP4J will show a huge amount of low level debug info
+		if (SnmpPref.isSnmp4jLogEnabled())
+			LogFactory.setLogFactory(new Log4jLogFactory());
+
+		// Creates v3 SNMP USM, shared by all the sessions
+		usm = new USM(SecurityProtocols.getInstance(), new OctetString(
+				MPv3.createLocalEngineID()), 0);
+		SecurityModels.getInstance().addSecurityModel(usm);
+
+		// Adds 'jnetman' usm using MD5 authentication and DES encryption
+		UsmUser jnetmanUser = new UsmUser(new OctetString(SnmpPref.getUser()),
+				AuthMD5.ID, new OctetString(SnmpPref.getPassword()),
+				PrivDES.ID, new OctetString(SnmpPref.getPassword()));
+		usm.addUser(new OctetString(SnmpPref.getUser()), jnetmanUser);
+		logger.debug("New USM User added >> " + jnetmanUser.getSecurityName());
+	}
+
+	private static void init() {
+		if (usm == null)
+			initUSM();
+
+		int size = Math.max(1, SnmpPref.getTransportPoolSize());
+		sessions = new Snmp[size];
+		try {
+			if (SnmpPref.isNioTransportEnabled()) {
+				eventLoops = new NioEventLoop[Math.max(1,
+						Math.min(size, SnmpPref.getNioEventLoops()))];
+				for (int i = 0; i < eventLoops.length; i++)
+					eventLoops[i] = new NioEventLoop("SnmpEventLoop-" + i);
+			}
+			for (int i = 0; i < size; i++) {
+				TransportMapping<?> transport;
+				if (eventLoops != null)
+					/*
+					 * The Snmp dispatcher decodes the message before
+					 * returning, buffers can go back to the pool at once.
+					 */
+					transport = new NioUdpTransportMapping(new UdpAddress(
+							"0.0.0.0/0"), eventLoops[i % eventLoops.length],
+							getBufferPool(), false);
+				else
+					transport = new DefaultUdpTransportMapping();
+				sessions[i] = new Snmp(transport);
+				// retries back off exponentially, see RttEstimator
+				sessions[i].setTimeoutModel(new BackoffTimeoutModel(SnmpPref
+						.getTimeout()));
+				// Enables listening for incoming SNMP packet
+				transport.listen();
+			}
+		} catch (IOException e) {
+			logger.fatal(
+					"IOException while creating a new DefaultUdpTransportMapping()",
+					e);
+			System.exit(-1);
+		}
+
+		if (SnmpPref.isEngineCacheEnabled()) {
+			engineCache = new EngineCache(
+					EngineCache.getFile(Session.getSessionDir()), usm);
+			engineCache.load(sessions);
+		}
+
+		logger.debug("New transport pool created with " + size
+				+ " shared SNMP sessions");
+	}
+
+}
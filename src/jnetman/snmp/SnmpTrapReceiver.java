@@ -1,86 +1,335 @@
 package jnetman.snmp;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jnetman.session.SnmpPref;
 
 import org.apache.log4j.Logger;
-import org.snmp4j.CommandResponder;
-import org.snmp4j.CommandResponderEvent;
-import org.snmp4j.MessageDispatcherImpl;
-import org.snmp4j.Snmp;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.TransportStateReference;
 import org.snmp4j.mp.MPv1;
 import org.snmp4j.mp.MPv2c;
 import org.snmp4j.mp.MPv3;
-import org.snmp4j.security.SecurityModels;
-import org.snmp4j.security.SecurityProtocols;
-import org.snmp4j.security.USM;
 import org.snmp4j.smi.Address;
 import org.snmp4j.smi.GenericAddress;
+import org.snmp4j.smi.OID;
 import org.snmp4j.smi.OctetString;
 import org.snmp4j.smi.UdpAddress;
 import org.snmp4j.transport.DefaultUdpTransportMapping;
-import org.snmp4j.util.MultiThreadedMessageDispatcher;
-import org.snmp4j.util.ThreadPool;
+import org.snmp4j.transport.TransportListener;
 
-public class SnmpTrapReceiver implements CommandResponder {
+/**
+ * Receives the traps sent to TRAPS_PORT and runs them through a
+ * TrapPipeline. Register TrapFilters and TrapListeners to process them.
+ *
+ * With TRAP_RECEIVER_SOCKETS > 1 several sockets are bound to the port with
+ * SO_REUSEPORT, each one with its own receive thread, and the kernel spreads
+ * the agents among them: intake scales with the cores instead of being
+ * capped by a single receive thread.
+ */
+public class SnmpTrapReceiver {
 
 	// initialize Log4J logging
 	static Logger logger = Logger.getLogger("snmp.snmpTrapReceiver");
 
-	private MultiThreadedMessageDispatcher dispatcher;
-	private Snmp snmp = null;
-	private Address listenAddress;
-	private ThreadPool threadPool;
+	private static final long STATS_INTERVAL_SECONDS = 60;
 
-	private int n = 0;
-	private long start = -1;
+	private Address listenAddress;
+	private final List<ReceiverSocket> sockets = new CopyOnWriteArrayList<ReceiverSocket>();
+	private final TrapPipeline pipeline;
+	private final RawTrapFilter rawFilter = new RawTrapFilter();
+	private final InformResponder informResponder;
+	private final TrapAggregator aggregator;
 
 	public SnmpTrapReceiver() {
+		// make sure the USM shared with the clients is registered
+		SnmpTransportPool.getUSM();
+		pipeline = new TrapPipeline(SnmpPref.getTrapRingSize(),
+				SnmpPref.getTrapSlotSize(), SnmpPref.getTrapConsumerThreads(),
+				SnmpPref.getTrapBatchSize(), getOverflowPolicy(),
+				new MPv1(), new MPv2c(), new MPv3());
+		pipeline.setRawFilter(rawFilter);
+		informResponder = new InformResponder(
+				SnmpPref.getTrapInformRecentSize());
+		pipeline.setInformResponder(informResponder);
+		pipeline.addTrapListener(new TrapListener() {
+			public void onTraps(List<Trap> traps) {
+				if (logger.isTraceEnabled())
+					for (Trap trap : traps)
+						logger.trace("TRAP received >> " + trap);
+			}
+		});
+
+		// link flaps are told apart by the ifIndex of the interface
+		aggregator = new TrapAggregator(SnmpPref.getTrapAggregationWindow(),
+				SnmpPref.getTrapAggregationMaxAge(),
+				SnmpPref.getTrapAggregationMaxGroups());
+		aggregator.addKeyPrefix(MIB.IfIndex);
+		pipeline.addTrapListener(aggregator);
 		logger.debug("Created");
 	}
 
-	private void init() throws UnknownHostException, IOException {
-		threadPool = ThreadPool.create("Trap", 4);
-		dispatcher = new MultiThreadedMessageDispatcher(threadPool,
-				new MessageDispatcherImpl());
+	private static TrapPipeline.OverflowPolicy getOverflowPolicy() {
+		String policy = SnmpPref.getTrapOverflowPolicy();
+		try {
+			return TrapPipeline.OverflowPolicy.valueOf(policy.trim()
+					.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			logger.error("TRAP_OVERFLOW_POLICY '" + policy
+					+ "' must be DROP or BLOCK, using DROP");
+			return TrapPipeline.OverflowPolicy.DROP;
+		}
+	}
 
+	private void init() throws UnknownHostException, IOException {
 		listenAddress = GenericAddress.parse("udp:0.0.0.0/"
 				+ SnmpPref.getTrapsPort());
-		DefaultUdpTransportMapping transport = new DefaultUdpTransportMapping(
-				(UdpAddress) listenAddress);
-		snmp = new Snmp(dispatcher, transport);
-		snmp.getMessageDispatcher().addMessageProcessingModel(new MPv1());
-		snmp.getMessageDispatcher().addMessageProcessingModel(new MPv2c());
-		snmp.getMessageDispatcher().addMessageProcessingModel(new MPv3());
-		USM usm = new USM(SecurityProtocols.getInstance(), new OctetString(
-				MPv3.createLocalEngineID()), 0);
-		SecurityModels.getInstance().addSecurityModel(usm);
-		snmp.listen();
-		logger.debug("Listening for traps on "
-				+ transport.getListenAddress().toString());
+		int n = Math.max(1, SnmpPref.getTrapReceiverSockets());
+		if (n > 1 && !SnmpPref.isNioTransportEnabled()) {
+			logger.warn("TRAP_RECEIVER_SOCKETS requires NIO_TRANSPORT_ENABLED, "
+					+ "using a single socket");
+			n = 1;
+		}
+		configureRawFilter();
+		File journalDir = SnmpPref.getTrapJournalDir();
+		if (journalDir != null)
+			pipeline.setJournal(new TrapJournal(journalDir, SnmpPref
+					.getTrapJournalSegmentSize(), SnmpPref
+					.getTrapJournalMaxSegments(), SnmpPref
+					.getTrapJournalSyncInterval()));
+		pipeline.start();
+		for (int i = 0; i < n; i++) {
+			ReceiverSocket socket = new ReceiverSocket(i);
+			try {
+				socket.listen(n > 1);
+			} catch (IOException e) {
+				socket.close();
+				if (i == 0) {
+					if (n == 1)
+						throw e;
+					// e.g. SO_REUSEPORT not supported, fall back to one socket
+					logger.warn("Unable to open trap socket 0 with "
+							+ "SO_REUSEPORT, using 1 socket >> "
+							+ e.getMessage());
+					socket = new ReceiverSocket(0);
+					socket.listen(false);
+					sockets.add(socket);
+					break;
+				}
+				// e.g. SO_REUSEPORT not supported, go on with what we have
+				logger.warn("Unable to open trap socket " + i + ", using "
+						+ i + " sockets >> " + e.getMessage());
+				break;
+			}
+			sockets.add(socket);
+		}
+		logger.debug("Listening for traps on " + listenAddress + " with "
+				+ sockets.size() + " sockets");
+
+		SnmpScheduler.get().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				String perSocket = "";
+				for (ReceiverSocket socket : sockets)
+					perSocket += ", socket " + socket.index + " = "
+							+ socket.received.get() + "/"
+							+ socket.dropped.get();
+				logger.debug("Some statistics, " + pipeline + perSocket
+						+ " (received/dropped), raw filter: " + rawFilter
+						+ ", informs: " + informResponder + ", aggregated = "
+						+ aggregator.getEmittedCount());
+			}
+		}, STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Adds the rules of the raw filter from the SNMP properties.
+	 */
+	private void configureRawFilter() throws UnknownHostException {
+		for (String source : SnmpPref.getTrapAllowedSources())
+			rawFilter.allowSource(InetAddress.getByName(source));
+		for (String source : SnmpPref.getTrapDeniedSources())
+			rawFilter.denySource(InetAddress.getByName(source));
+		for (String community : SnmpPref.getTrapAllowedCommunities())
+			rawFilter.allowCommunity(new OctetString(community));
+		rawFilter.setLocalEngineID(SnmpTransportPool.getUSM()
+				.getLocalEngineID());
+		for (String engineID : SnmpPref.getTrapAllowedEngineIDs())
+			rawFilter.allowEngineID(OctetString.fromHexString(engineID));
+		for (String oid : SnmpPref.getTrapDeniedOIDs())
+			rawFilter.denyTrapOID(new OID(oid));
+	}
+
+	/**
+	 * A socket bound to TRAPS_PORT with its own receive thread, feeding the
+	 * shared pipeline.
+	 */
+	private class ReceiverSocket implements TransportListener {
+
+		final int index;
+		TransportMapping<?> transport;
+		NioEventLoop eventLoop;
+		final AtomicLong received = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+
+		ReceiverSocket(int index) {
+			this.index = index;
+		}
+
+		void listen(boolean reusePort) throws IOException {
+			int receiveBufferSize = SnmpPref.getTrapReceiveBufferSize();
+			if (SnmpPref.isNioTransportEnabled()) {
+				eventLoop = new NioEventLoop("TrapEventLoop-" + index);
+				// the pipeline copies each message in its ring
+				NioUdpTransportMapping nio = new NioUdpTransportMapping(
+						(UdpAddress) listenAddress, eventLoop,
+						SnmpTransportPool.getBufferPool(), false);
+				nio.setReceiveBufferSize(receiveBufferSize);
+				nio.setReusePort(reusePort);
+				transport = nio;
+			} else {
+				DefaultUdpTransportMapping udp = new DefaultUdpTransportMapping(
+						(UdpAddress) listenAddress);
+				if (receiveBufferSize > 0)
+					udp.setReceiveBufferSize(receiveBufferSize);
+				transport = udp;
+			}
+			transport.addTransportListener(this);
+			transport.listen();
+		}
+
+		@SuppressWarnings("rawtypes")
+		public void processMessage(TransportMapping sourceTransport,
+				Address incomingAddress, ByteBuffer wholeMessage,
+				TransportStateReference tmStateReference) {
+			received.incrementAndGet();
+			if (!pipeline.offer(sourceTransport, incomingAddress,
+					wholeMessage, tmStateReference))
+				dropped.incrementAndGet();
+		}
+
+		void close() {
+			try {
+				if (transport != null)
+					transport.close();
+			} catch (IOException e) {
+				logger.debug("Unable to close trap socket " + index, e);
+			}
+			if (eventLoop != null)
+				eventLoop.close();
+		}
 	}
 
 	public void run() {
 		try {
 			init();
-			snmp.addCommandResponder(this);
 		} catch (Exception ex) {
 			ex.printStackTrace();
 		}
 	}
 
-	public void processPdu(CommandResponderEvent event) {
-		if (start < 0) {
-			start = System.currentTimeMillis() - 1;
-		}
-		logger.info("TRAP received >> " + event.getPDU().toString());
-		n++;
-		if ((n % 100 == 1)) {
-			logger.info("Some statistics, processing  "
-					+ (n / (double) (System.currentTimeMillis() - start))
-					* 1000 + " trap/s, total " + n);
-		}
+	public void addTrapFilter(TrapFilter filter) {
+		pipeline.addTrapFilter(filter);
+	}
+
+	public void addTrapListener(TrapListener listener) {
+		pipeline.addTrapListener(listener);
+	}
+
+	/**
+	 * Returns the filter run on the raw messages before they are decoded, to
+	 * add rules or read its counters. Prefer it to a TrapFilter for the
+	 * rules it supports, the rejected traps cost almost nothing.
+	 * 
+	 * @return the RawTrapFilter of this receiver
+	 */
+	public RawTrapFilter getRawFilter() {
+		return rawFilter;
+	}
+
+	/**
+	 * Returns the responder acknowledging the INFORMs, to read its counters.
+	 * 
+	 * @return the InformResponder of this receiver
+	 */
+	public InformResponder getInformResponder() {
+		return informResponder;
+	}
+
+	/**
+	 * Registers a listener of the aggregated traps: identical traps received
+	 * within the aggregation window are reported once, with their count.
+	 */
+	public void addAggregatedTrapListener(AggregatedTrapListener listener) {
+		aggregator.addAggregatedTrapListener(listener);
+	}
+
+	/**
+	 * Returns the aggregation stage, to add key prefixes or read its
+	 * counters.
+	 * 
+	 * @return the TrapAggregator of this receiver
+	 */
+	public TrapAggregator getAggregator() {
+		return aggregator;
+	}
+
+	/**
+	 * @return number of sockets receiving the traps
+	 */
+	public int getSocketsCount() {
+		return sockets.size();
+	}
+
+	/**
+	 * @return number of messages received by the passed socket
+	 */
+	public long getReceivedCount(int socket) {
+		return sockets.get(socket).received.get();
+	}
+
+	/**
+	 * @return number of messages received by the passed socket and dropped
+	 *         because the ring was full
+	 */
+	public long getDroppedCount(int socket) {
+		return sockets.get(socket).dropped.get();
+	}
+
+	/**
+	 * @return number of messages received by all the sockets
+	 */
+	public long getReceivedCount() {
+		long n = 0;
+		for (ReceiverSocket socket : sockets)
+			n += socket.received.get();
+		return n;
+	}
+
+	/**
+	 * @return number of messages received by all the sockets and dropped
+	 *         because the ring was full
+	 */
+	public long getDroppedCount() {
+		long n = 0;
+		for (ReceiverSocket socket : sockets)
+			n += socket.dropped.get();
+		return n;
+	}
+
+	/**
+	 * Returns the pipeline processing the traps, to read its counters.
+	 * 
+	 * @return the TrapPipeline of this receiver
+	 */
+	public TrapPipeline getPipeline() {
+		return pipeline;
 	}
 }
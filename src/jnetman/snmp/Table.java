@@ -15,6 +15,17 @@ public class Table {
 		table = new HashMap<OID, Row>();
 	}
 
+	/**
+	 * Creates a copy of the passed table, variables included.
+	 */
+	public Table(Table other) {
+		this();
+		for (Row row : other.table.values())
+			for (Map.Entry<OID, Variable> e : row.getMap().entrySet())
+				putVariable(row.getIndex(), e.getKey(), (Variable) e.getValue()
+						.clone());
+	}
+
 	public Row getRow(OID index) {
 		return this.table.get(index);
 	}
@@ -0,0 +1,77 @@
+package jnetman.snmp;
+
+/**
+ * Token bucket refilled at a constant rate up to a burst capacity. Tokens
+ * are reserved in advance: a reservation larger than the available tokens
+ * is granted anyway, leaving the bucket in debt, and the caller is told how
+ * long to wait before going on. Callers can thus schedule the request
+ * instead of blocking a thread, and the following reservations queue up
+ * behind it in order.
+ */
+public class TokenBucket {
+
+	private double rate;
+	private double capacity;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * @param ratePerSecond
+	 *            tokens added per second, 0 or less for no limit
+	 * @param capacity
+	 *            maximum number of tokens, i.e. the burst allowed after an
+	 *            idle period
+	 */
+	public TokenBucket(double ratePerSecond, double capacity) {
+		setRate(ratePerSecond, capacity);
+		this.tokens = this.capacity;
+	}
+
+	/**
+	 * Changes the rate and the capacity of the bucket.
+	 */
+	public synchronized void setRate(double ratePerSecond, double capacity) {
+		refill(System.nanoTime());
+		this.rate = ratePerSecond;
+		this.capacity = Math.max(1, capacity);
+		this.tokens = Math.min(this.tokens, this.capacity);
+	}
+
+	/**
+	 * @return tokens added per second, 0 or less for no limit
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return true if the bucket limits the rate
+	 */
+	public synchronized boolean isLimited() {
+		return rate > 0;
+	}
+
+	/**
+	 * Takes the passed number of tokens from the bucket.
+	 *
+	 * @return nanoseconds to wait before the tokens are actually available, 0
+	 *         if they were already in the bucket
+	 */
+	public synchronized long reserve(double n) {
+		if (rate <= 0)
+			return 0;
+		refill(System.nanoTime());
+		tokens -= n;
+		if (tokens >= 0)
+			return 0;
+		return (long) Math.ceil(-tokens / rate * 1e9);
+	}
+
+	private void refill(long now) {
+		if (rate > 0)
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * rate
+					/ 1e9);
+		lastRefill = now;
+	}
+
+}
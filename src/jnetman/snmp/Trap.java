@@ -0,0 +1,82 @@
+package jnetman.snmp;
+
+import org.snmp4j.PDU;
+import org.snmp4j.PDUv1;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.Variable;
+
+/**
+ * A decoded notification (trap or inform) received by the SnmpTrapReceiver.
+ */
+public class Trap {
+
+	private final Address source;
+	private final PDU pdu;
+	private final int securityModel;
+	private final OctetString securityName;
+	private final long receivedMillis;
+
+	public Trap(Address source, PDU pdu, int securityModel,
+			OctetString securityName, long receivedMillis) {
+		this.source = source;
+		this.pdu = pdu;
+		this.securityModel = securityModel;
+		this.securityName = securityName;
+		this.receivedMillis = receivedMillis;
+	}
+
+	/**
+	 * @return address of the agent that sent the notification
+	 */
+	public Address getSource() {
+		return source;
+	}
+
+	public PDU getPDU() {
+		return pdu;
+	}
+
+	public int getSecurityModel() {
+		return securityModel;
+	}
+
+	/**
+	 * @return community (v1/v2c) or user name (v3) of the notification
+	 */
+	public OctetString getSecurityName() {
+		return securityName;
+	}
+
+	/**
+	 * @return System.currentTimeMillis() when the message was received
+	 */
+	public long getReceivedMillis() {
+		return receivedMillis;
+	}
+
+	/**
+	 * Returns the notification OID: the value of snmpTrapOID.0 for v2c/v3
+	 * notifications, the OID translated as of RFC 3584 for v1 traps.
+	 *
+	 * @return the trap OID, null if missing
+	 */
+	public OID getTrapOID() {
+		if (pdu instanceof PDUv1) {
+			PDUv1 v1 = (PDUv1) pdu;
+			return SnmpConstants.getTrapOID(v1.getEnterprise(),
+					v1.getGenericTrap(), v1.getSpecificTrap());
+		}
+		Variable trapOID = pdu.getVariable(SnmpConstants.snmpTrapOID);
+		if (trapOID instanceof OID)
+			return (OID) trapOID;
+		return null;
+	}
+
+	public String toString() {
+		return "Trap from " + source + " >> " + pdu;
+	}
+
+}
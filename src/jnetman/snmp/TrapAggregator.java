@@ -0,0 +1,295 @@
+package jnetman.snmp;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Aggregation stage of the trap pipeline, suppressing trap storms. Traps
+ * with the same source agent, trap OID and values of the key variable
+ * bindings (e.g. the ifIndex of linkDown/linkUp) are merged in a group. The
+ * group is emitted as a single AggregatedTrap when no identical trap has
+ * been received for windowMillis (sliding window), or at the latest
+ * maxAgeMillis after its first trap, so that a never ending storm is still
+ * reported.
+ *
+ * At most maxGroups groups are kept, when full the oldest group is emitted
+ * early to make room. The aggregated traps are always emitted by the thread
+ * of the aggregator, never by the consumers of the pipeline.
+ *
+ * Groups are emitted in order of creation, i.e. of their first trap. Traps
+ * of a group may be received by several consumers out of order: the last
+ * trap of a group is the one received last, not the one processed last.
+ */
+public class TrapAggregator implements TrapListener {
+
+	static Logger logger = Logger.getLogger("snmp.trapAggregator");
+
+	private final long windowMillis;
+	private final long maxAgeMillis;
+	private final int maxGroups;
+	private final List<OID> keyPrefixes = new CopyOnWriteArrayList<OID>();
+	private final List<AggregatedTrapListener> listeners = new CopyOnWriteArrayList<AggregatedTrapListener>();
+	// groups in order of creation
+	private final LinkedHashMap<GroupKey, Group> groups = new LinkedHashMap<GroupKey, Group>();
+	private final ScheduledExecutorService scheduler;
+
+	private long received;
+	private long emitted;
+	private long evicted;
+
+	/**
+	 * @param windowMillis
+	 *            a group is emitted when quiet for this long
+	 * @param maxAgeMillis
+	 *            a group is emitted at most this long after its first trap
+	 * @param maxGroups
+	 *            maximum number of groups kept in memory
+	 */
+	public TrapAggregator(long windowMillis, long maxAgeMillis, int maxGroups) {
+		this.windowMillis = Math.max(1, windowMillis);
+		this.maxAgeMillis = Math.max(this.windowMillis, maxAgeMillis);
+		this.maxGroups = Math.max(1, maxGroups);
+		this.scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "TrapAggregator");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		long period = Math.max(1, this.windowMillis / 4);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flushExpired();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Variable bindings whose OID starts with the passed prefix take part in
+	 * the key of the traps, e.g. MIB.IfIndex to tell apart the links of the
+	 * same agent.
+	 */
+	public void addKeyPrefix(OID prefix) {
+		keyPrefixes.add(prefix);
+	}
+
+	public void addAggregatedTrapListener(AggregatedTrapListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeAggregatedTrapListener(AggregatedTrapListener listener) {
+		listeners.remove(listener);
+	}
+
+	public void onTraps(List<Trap> traps) {
+		List<AggregatedTrap> out = null;
+		synchronized (this) {
+			for (Trap trap : traps) {
+				received++;
+				GroupKey key = new GroupKey(trap);
+				Group group = groups.get(key);
+				if (group != null) {
+					group.add(trap);
+					continue;
+				}
+				if (groups.size() >= maxGroups) {
+					// make room emitting the oldest group
+					Iterator<Group> it = groups.values().iterator();
+					if (out == null)
+						out = new ArrayList<AggregatedTrap>();
+					out.add(it.next().toAggregatedTrap());
+					it.remove();
+					evicted++;
+				}
+				groups.put(key, new Group(trap, key.trapOID));
+			}
+		}
+		if (out != null) {
+			// listeners are called only by the thread of the aggregator
+			final List<AggregatedTrap> evictedTraps = out;
+			try {
+				scheduler.execute(new Runnable() {
+					public void run() {
+						emit(evictedTraps);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// closed
+				emit(evictedTraps);
+			}
+		}
+	}
+
+	/**
+	 * Emits the groups whose window has closed.
+	 */
+	private void flushExpired() {
+		long now = System.currentTimeMillis();
+		List<AggregatedTrap> out = new ArrayList<AggregatedTrap>();
+		synchronized (this) {
+			Iterator<Group> it = groups.values().iterator();
+			while (it.hasNext()) {
+				Group group = it.next();
+				if (now - group.lastMillis >= windowMillis
+						|| now - group.firstMillis >= maxAgeMillis) {
+					out.add(group.toAggregatedTrap());
+					it.remove();
+				}
+			}
+		}
+		if (!out.isEmpty())
+			emit(out);
+	}
+
+	private void emit(List<AggregatedTrap> out) {
+		synchronized (this) {
+			emitted += out.size();
+		}
+		for (AggregatedTrapListener listener : listeners)
+			try {
+				listener.onAggregatedTraps(out);
+			} catch (RuntimeException e) {
+				logger.error("Aggregated trap listener " + listener
+						+ " failed", e);
+			}
+	}
+
+	/**
+	 * Emits all the groups at once and stops the aggregator.
+	 */
+	public void close() {
+		List<AggregatedTrap> out = new ArrayList<AggregatedTrap>();
+		synchronized (this) {
+			for (Group group : groups.values())
+				out.add(group.toAggregatedTrap());
+			groups.clear();
+		}
+		if (!out.isEmpty())
+			emit(out);
+		scheduler.shutdown();
+	}
+
+	/**
+	 * @return number of traps received
+	 */
+	public synchronized long getReceivedCount() {
+		return received;
+	}
+
+	/**
+	 * @return number of aggregated traps emitted, received - emitted is the
+	 *         number of traps suppressed
+	 */
+	public synchronized long getEmittedCount() {
+		return emitted;
+	}
+
+	/**
+	 * @return number of groups emitted early because too many were open
+	 */
+	public synchronized long getEvictedCount() {
+		return evicted;
+	}
+
+	/**
+	 * @return number of groups currently open
+	 */
+	public synchronized int getGroupsCount() {
+		return groups.size();
+	}
+
+	private static final class Group {
+		final Trap first;
+		final OID trapOID;
+		final long firstMillis;
+		Trap last;
+		long lastMillis;
+		int count = 1;
+
+		Group(Trap first, OID trapOID) {
+			this.first = first;
+			this.trapOID = trapOID;
+			this.firstMillis = first.getReceivedMillis();
+			this.last = first;
+			this.lastMillis = firstMillis;
+		}
+
+		void add(Trap trap) {
+			count++;
+			// fed by several consumers, traps may arrive out of order
+			if (trap.getReceivedMillis() >= lastMillis) {
+				last = trap;
+				lastMillis = trap.getReceivedMillis();
+			}
+		}
+
+		AggregatedTrap toAggregatedTrap() {
+			return new AggregatedTrap(first, last, trapOID, count,
+					firstMillis, lastMillis);
+		}
+	}
+
+	private final class GroupKey {
+		final Object source;
+		final OID trapOID;
+		final List<Object> keyValues = new ArrayList<Object>();
+
+		GroupKey(Trap trap) {
+			this.source = hostOf(trap.getSource());
+			this.trapOID = trap.getTrapOID();
+			for (VariableBinding vb : trap.getPDU().getVariableBindings())
+				for (OID prefix : keyPrefixes)
+					if (vb.getOid().startsWith(prefix)) {
+						keyValues.add(vb.getOid());
+						keyValues.add(vb.getVariable());
+						break;
+					}
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof GroupKey))
+				return false;
+			GroupKey other = (GroupKey) o;
+			return source.equals(other.source)
+					&& (trapOID == null ? other.trapOID == null : trapOID
+							.equals(other.trapOID))
+					&& keyValues.equals(other.keyValues);
+		}
+
+		public int hashCode() {
+			int h = source.hashCode();
+			h = 31 * h + (trapOID == null ? 0 : trapOID.hashCode());
+			return 31 * h + keyValues.hashCode();
+		}
+	}
+
+	/**
+	 * The source port of the traps may change, only the host identifies the
+	 * agent.
+	 */
+	private static Object hostOf(Address address) {
+		if (address instanceof IpAddress) {
+			InetAddress inet = ((IpAddress) address).getInetAddress();
+			if (inet != null)
+				return inet;
+		}
+		return address;
+	}
+
+}
@@ -0,0 +1,15 @@
+package jnetman.snmp;
+
+/**
+ * Decides which of the decoded traps are handed to the TrapListeners.
+ * Filters are called concurrently by the consumer threads of the trap
+ * pipeline.
+ */
+public interface TrapFilter {
+
+	/**
+	 * @return true to dispatch the trap, false to discard it
+	 */
+	boolean accept(Trap trap);
+
+}
@@ -0,0 +1,351 @@
+package jnetman.snmp;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.TransportIpAddress;
+
+/**
+ * Durable append-only journal of the raw traps received, for replay and
+ * offline analysis. Records are appended to memory-mapped segment files of
+ * segmentSize bytes: an append is a copy into the mapping, the OS writes the
+ * pages back in the background. A flusher thread forces the written pages
+ * to disk every syncIntervalMillis (group commit), so at most that much is
+ * lost if the host crashes. A crash of the JVM alone loses nothing, the
+ * pages are already in the page cache of the OS.
+ *
+ * When a record does not fit in the current segment a new one is started.
+ * The flusher forces the previous one and unmaps it at once, instead of
+ * waiting for the GC to release the mapping, then deletes the oldest
+ * segments beyond maxSegments: their disk space is freed straight away.
+ *
+ * The messages are journaled by the consumers of the TrapPipeline: the
+ * traps discarded by the raw filter, or dropped because the ring was full,
+ * are never journaled.
+ *
+ * Record format: int length of the rest of the record, long receive time in
+ * millis, byte length of the source IP address (0 if not IP), the address,
+ * unsigned short source port, the message as received. A zero length marks
+ * the end of the data of a segment. The length is written last, so that a
+ * record is visible to the readers only when complete.
+ *
+ * Read the journal with TrapJournalReader.
+ */
+public class TrapJournal {
+
+	static Logger logger = Logger.getLogger("snmp.trapJournal");
+
+	static final String SEGMENT_PREFIX = "traps-";
+	static final String SEGMENT_SUFFIX = ".journal";
+
+	private final File dir;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final ScheduledExecutorService flusher;
+	// serializes the forces, unmaps and deletions of the segments
+	private final Object syncLock = new Object();
+
+	private long segmentIndex;
+	private MappedByteBuffer segment;
+	// segments rotated out, still to be forced by the flusher
+	private final List<MappedByteBuffer> toForce = new ArrayList<MappedByteBuffer>();
+	private boolean dirty;
+	private boolean closed;
+
+	private long appended;
+	private long appendedBytes;
+	private long rotations;
+	private long syncs;
+
+	/**
+	 * Opens the journal in the passed directory, appending to a new segment.
+	 *
+	 * @param dir
+	 *            directory of the segments, created if missing
+	 * @param segmentSize
+	 *            size in bytes of each segment
+	 * @param maxSegments
+	 *            number of segments kept, the oldest ones are deleted
+	 * @param syncIntervalMillis
+	 *            interval between forces of the written pages to disk
+	 */
+	public TrapJournal(File dir, int segmentSize, int maxSegments,
+			long syncIntervalMillis) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create journal directory " + dir);
+		this.dir = dir;
+		this.segmentSize = Math.max(64 * 1024, segmentSize);
+		this.maxSegments = Math.max(1, maxSegments);
+		File[] existing = listSegments(dir);
+		segmentIndex = existing.length == 0 ? 0
+				: indexOf(existing[existing.length - 1]) + 1;
+		openSegment();
+
+		this.flusher = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "TrapJournalFlusher");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		long period = Math.max(1, syncIntervalMillis);
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sync();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+		logger.debug("Journaling traps in " + dir + ", segment "
+				+ segmentIndex);
+	}
+
+	/**
+	 * Appends a record.
+	 *
+	 * @param receivedMillis
+	 *            time the message was received
+	 * @param source
+	 *            address of the sender
+	 * @param data
+	 *            buffer holding the message
+	 * @param length
+	 *            length of the message, starting at offset 0 of data
+	 */
+	public void append(long receivedMillis, Address source, byte[] data,
+			int length) {
+		byte[] ip = null;
+		int port = 0;
+		if (source instanceof IpAddress) {
+			InetAddress inet = ((IpAddress) source).getInetAddress();
+			if (inet != null)
+				ip = inet.getAddress();
+			if (source instanceof TransportIpAddress)
+				port = ((TransportIpAddress) source).getPort();
+		}
+		int ipLength = ip == null ? 0 : ip.length;
+		int recordLength = 8 + 1 + ipLength + 2 + length;
+		if (4 + recordLength + 4 > segmentSize) {
+			logger.warn("Trap of " + length + " bytes too large for the "
+					+ "journal, not recorded");
+			return;
+		}
+
+		synchronized (this) {
+			if (closed)
+				return;
+			// room for the record and the end marker
+			if (segment.remaining() < 4 + recordLength + 4) {
+				rotate();
+				if (closed)
+					return;
+			}
+			int pos = segment.position();
+			segment.position(pos + 4);
+			segment.putLong(receivedMillis);
+			segment.put((byte) ipLength);
+			if (ip != null)
+				segment.put(ip);
+			segment.putShort((short) port);
+			segment.put(data, 0, length);
+			segment.putInt(pos, recordLength);
+			dirty = true;
+			appended++;
+			appendedBytes += 4 + recordLength;
+		}
+	}
+
+	/**
+	 * Starts a new segment, the current one is left to the flusher.
+	 */
+	private void rotate() {
+		toForce.add(segment);
+		segmentIndex++;
+		rotations++;
+		try {
+			openSegment();
+		} catch (IOException e) {
+			// never fail the consumers, the traps are still processed
+			logger.error("Unable to open journal segment " + segmentIndex
+					+ ", journaling stopped", e);
+			closed = true;
+		}
+	}
+
+	private void openSegment() throws IOException {
+		File file = new File(dir, segmentName(segmentIndex));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(segmentSize);
+			// the mapping stays valid after the channel is closed
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					segmentSize);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void deleteOldSegments() {
+		File[] segments = listSegments(dir);
+		for (int i = 0; i < segments.length - maxSegments; i++) {
+			if (segments[i].delete())
+				logger.debug("Journal segment deleted >> " + segments[i]);
+			else
+				logger.warn("Unable to delete journal segment " + segments[i]);
+		}
+	}
+
+	/**
+	 * Forces the written pages to disk, called periodically by the flusher.
+	 * The segments rotated out are unmapped once forced, and the oldest ones
+	 * deleted.
+	 */
+	public void sync() {
+		synchronized (syncLock) {
+			List<MappedByteBuffer> retired;
+			MappedByteBuffer current = null;
+			synchronized (this) {
+				if (!dirty && toForce.isEmpty())
+					return;
+				retired = new ArrayList<MappedByteBuffer>(toForce);
+				toForce.clear();
+				if (dirty && !closed)
+					current = segment;
+				dirty = false;
+				syncs++;
+			}
+			// outside the lock, appends go on while the pages are written
+			for (MappedByteBuffer buffer : retired) {
+				buffer.force();
+				// never used again, nothing references it any more
+				unmap(buffer);
+			}
+			if (current != null)
+				current.force();
+			if (!retired.isEmpty())
+				deleteOldSegments();
+		}
+	}
+
+	/**
+	 * Forces everything to disk and stops journaling.
+	 */
+	public void close() {
+		flusher.shutdown();
+		synchronized (this) {
+			if (closed)
+				return;
+			toForce.add(segment);
+			dirty = false;
+			closed = true;
+		}
+		sync();
+		logger.debug("Journal closed, " + appended + " traps recorded");
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * @return number of records appended
+	 */
+	public synchronized long getAppendedCount() {
+		return appended;
+	}
+
+	/**
+	 * @return number of bytes appended
+	 */
+	public synchronized long getAppendedBytes() {
+		return appendedBytes;
+	}
+
+	/**
+	 * @return number of segments started since opening
+	 */
+	public synchronized long getRotationsCount() {
+		return rotations;
+	}
+
+	/**
+	 * @return number of group commits to disk
+	 */
+	public synchronized long getSyncsCount() {
+		return syncs;
+	}
+
+	/**
+	 * Releases a mapping without waiting for the GC. The cleaner is reached by
+	 * reflection: sun.misc.Unsafe.invokeCleaner from Java 9, the cleaner of
+	 * the DirectBuffer before. If neither works the GC releases it later.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field f = unsafeClass.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+					ByteBuffer.class);
+			invokeCleaner.invoke(f.get(null), buffer);
+			return;
+		} catch (Exception e) {
+			// Java 8, try its cleaner
+		}
+		try {
+			Method cleaner = buffer.getClass().getMethod("cleaner");
+			cleaner.setAccessible(true);
+			Object c = cleaner.invoke(buffer);
+			if (c != null)
+				c.getClass().getMethod("clean").invoke(c);
+		} catch (Exception e) {
+			logger.debug("Unable to unmap journal segment, left to the GC >> "
+					+ e);
+		}
+	}
+
+	static String segmentName(long index) {
+		return SEGMENT_PREFIX + String.format("%016d", index) + SEGMENT_SUFFIX;
+	}
+
+	static long indexOf(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+				name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * @return the segments of the directory, oldest first
+	 */
+	static File[] listSegments(File dir) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null)
+			return new File[0];
+		// zero padded indexes, the names sort as the indexes
+		Arrays.sort(files);
+		return files;
+	}
+
+}
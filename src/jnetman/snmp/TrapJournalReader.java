@@ -0,0 +1,137 @@
+package jnetman.snmp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.UdpAddress;
+
+/**
+ * Sequential reader of a TrapJournal, oldest record first. Each segment is
+ * mapped read-only and scanned in place: the message of the current record
+ * is a view of the mapping, nothing is copied.
+ *
+ * Reading a journal still being written is allowed, the records appended
+ * after the reader went past the end of a segment are not seen.
+ *
+ * <pre>
+ * TrapJournalReader reader = new TrapJournalReader(dir);
+ * while (reader.next())
+ * 	process(reader.getReceivedMillis(), reader.getSource(), reader.getData());
+ * </pre>
+ */
+public class TrapJournalReader {
+
+	private final File[] segments;
+	private int current = -1;
+	private MappedByteBuffer segment;
+
+	private long receivedMillis;
+	private Address source;
+	private ByteBuffer data;
+
+	/**
+	 * @param dir
+	 *            directory of the journal
+	 */
+	public TrapJournalReader(File dir) {
+		this.segments = TrapJournal.listSegments(dir);
+	}
+
+	/**
+	 * Moves to the next record.
+	 *
+	 * @return false if there are no more records
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if (segment != null && readRecord())
+				return true;
+			if (++current >= segments.length) {
+				segment = null;
+				return false;
+			}
+			segment = map(segments[current]);
+		}
+	}
+
+	private boolean readRecord() {
+		if (segment.remaining() < 4)
+			return false;
+		int pos = segment.position();
+		int length = segment.getInt();
+		// end of the data, or a record torn by a crash of the host
+		if (length <= 0 || length > segment.remaining()) {
+			segment.position(pos);
+			return false;
+		}
+		int end = segment.position() + length;
+		receivedMillis = segment.getLong();
+		int ipLength = segment.get();
+		InetAddress inet = null;
+		if (ipLength > 0) {
+			byte[] ip = new byte[ipLength];
+			segment.get(ip);
+			try {
+				inet = InetAddress.getByAddress(ip);
+			} catch (UnknownHostException e) {
+				// wrong length, not an address
+			}
+		}
+		int port = segment.getShort() & 0xffff;
+		source = inet == null ? null : new UdpAddress(inet, port);
+
+		ByteBuffer view = segment.duplicate();
+		view.limit(end);
+		data = view.slice();
+		segment.position(end);
+		return true;
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return time the current record was received, in millis
+	 */
+	public long getReceivedMillis() {
+		return receivedMillis;
+	}
+
+	/**
+	 * @return sender of the current record, null if not an IP address
+	 */
+	public Address getSource() {
+		return source;
+	}
+
+	/**
+	 * @return the message of the current record as received, valid until
+	 *         the next call to next
+	 */
+	public ByteBuffer getData() {
+		return data;
+	}
+
+	/**
+	 * @return the segment file of the current record
+	 */
+	public File getSegment() {
+		return current >= 0 && current < segments.length ? segments[current]
+				: null;
+	}
+
+}
@@ -0,0 +1,18 @@
+package jnetman.snmp;
+
+import java.util.List;
+
+/**
+ * Receives the traps accepted by the trap pipeline, in batches. Listeners
+ * are called concurrently by the consumer threads of the pipeline, each
+ * batch in the order its traps were received.
+ */
+public interface TrapListener {
+
+	/**
+	 * @param traps
+	 *            batch of traps, never empty
+	 */
+	void onTraps(List<Trap> traps);
+
+}
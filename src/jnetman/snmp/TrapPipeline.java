@@ -0,0 +1,529 @@
+package jnetman.snmp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import jnetman.snmp.RawTrapFilter.Verdict;
+
+import org.apache.log4j.Logger;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.mp.MessageProcessingModel;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.transport.TransportListener;
+
+/**
+ * Trap ingestion pipeline. The receive threads of the transports run the
+ * RawTrapFilter, if any, on each message, copy the accepted ones into a slot
+ * of a pre-allocated lock-free RingBuffer and go back to their socket at
+ * once. Consumer threads take the messages in batches and run them through
+ * three stages:
+ *
+ * decode: the message is recorded in the TrapJournal, if any, and decoded
+ * by a MessageDispatcherImpl owned by the consumer, authenticating and
+ * decrypting v3 messages with the shared USM;
+ *
+ * filter: the TrapFilters discard the unwanted traps;
+ *
+ * dispatch: the batch of accepted traps is handed to the TrapListeners.
+ *
+ * When the ring is full the overflow policy decides between dropping the
+ * message (DROP) and holding the receive thread until a slot is free
+ * (BLOCK), so that the backlog moves to the socket receive buffer.
+ */
+public class TrapPipeline implements TransportListener {
+
+	static Logger logger = Logger.getLogger("snmp.trapPipeline");
+
+	public enum OverflowPolicy {
+		DROP, BLOCK
+	}
+
+	private static final long IDLE_PARK_NANOS = 50000;
+	/*
+	 * Idle consumers park for exponentially longer times, up to this, and are
+	 * woken up by the receive threads when a message is published.
+	 */
+	private static final long MAX_IDLE_PARK_NANOS = 5000000;
+
+	private final RingBuffer<RawTrap> ring;
+	private final OverflowPolicy overflowPolicy;
+	private final int batchSize;
+	private final MessageProcessingModel[] models;
+	private final List<TrapFilter> filters = new CopyOnWriteArrayList<TrapFilter>();
+	private final List<TrapListener> listeners = new CopyOnWriteArrayList<TrapListener>();
+	private final Consumer[] consumers;
+	private volatile TrapJournal journal;
+	private volatile RawTrapFilter rawFilter;
+	private volatile InformResponder informResponder;
+	private volatile boolean running;
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong prefiltered = new AtomicLong();
+	private final AtomicLong blockedNanos = new AtomicLong();
+	private final AtomicLong decoded = new AtomicLong();
+	private final AtomicLong decodeErrors = new AtomicLong();
+	private final AtomicLong filtered = new AtomicLong();
+	private final AtomicLong dispatched = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final long startMillis = System.currentTimeMillis();
+
+	/**
+	 * @param ringSize
+	 *            number of slots of the ring
+	 * @param slotSize
+	 *            initial size in bytes of the buffer of each slot
+	 * @param consumerThreads
+	 *            number of threads running the stages
+	 * @param batchSize
+	 *            maximum number of messages taken at once by a consumer
+	 * @param overflowPolicy
+	 *            what to do when the ring is full
+	 * @param models
+	 *            message processing models used to decode the messages,
+	 *            shared by all the consumers
+	 */
+	public TrapPipeline(int ringSize, final int slotSize, int consumerThreads,
+			int batchSize, OverflowPolicy overflowPolicy,
+			MessageProcessingModel... models) {
+		this.ring = new RingBuffer<RawTrap>(ringSize,
+				new RingBuffer.EventFactory<RawTrap>() {
+					public RawTrap newEvent() {
+						return new RawTrap(slotSize);
+					}
+				});
+		this.batchSize = Math.max(1, batchSize);
+		this.overflowPolicy = overflowPolicy;
+		this.models = models;
+		this.consumers = new Consumer[Math.max(1, consumerThreads)];
+	}
+
+	public void addTrapFilter(TrapFilter filter) {
+		filters.add(filter);
+	}
+
+	public void removeTrapFilter(TrapFilter filter) {
+		filters.remove(filter);
+	}
+
+	public void addTrapListener(TrapListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeTrapListener(TrapListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Sets the filter run on the raw messages by the receive threads, before
+	 * they enter the ring. Null to accept all of them.
+	 */
+	public void setRawFilter(RawTrapFilter rawFilter) {
+		this.rawFilter = rawFilter;
+	}
+
+	public RawTrapFilter getRawFilter() {
+		return rawFilter;
+	}
+
+	/**
+	 * Sets the responder acknowledging the INFORMs, v2c ones with a community
+	 * allowed by the raw filter by the receive threads and the others by the
+	 * consumers as soon as decoded. Null not to acknowledge them.
+	 */
+	public void setInformResponder(InformResponder informResponder) {
+		this.informResponder = informResponder;
+	}
+
+	public InformResponder getInformResponder() {
+		return informResponder;
+	}
+
+	/**
+	 * Sets the journal recording each message as received, before it is
+	 * decoded and filtered. Null to stop journaling.
+	 */
+	public void setJournal(TrapJournal journal) {
+		this.journal = journal;
+	}
+
+	public TrapJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Starts the consumer threads.
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		for (int i = 0; i < consumers.length; i++) {
+			consumers[i] = new Consumer();
+			Thread t = new Thread(consumers[i], "TrapConsumer-" + i);
+			t.setDaemon(true);
+			consumers[i].thread = t;
+			t.start();
+		}
+		logger.debug("Trap pipeline started, ring size = " + ring.capacity()
+				+ ", consumers = " + consumers.length + ", overflow policy = "
+				+ overflowPolicy);
+	}
+
+	/**
+	 * Stops the consumer threads, messages still in the ring are discarded.
+	 */
+	public synchronized void stop() {
+		running = false;
+	}
+
+	/**
+	 * Receive stage, called by the receive thread of the transport. The
+	 * message is copied into a slot of the ring.
+	 */
+	@SuppressWarnings("rawtypes")
+	public void processMessage(TransportMapping sourceTransport,
+			Address incomingAddress, ByteBuffer wholeMessage,
+			TransportStateReference tmStateReference) {
+		offer(sourceTransport, incomingAddress, wholeMessage,
+				tmStateReference);
+	}
+
+	/**
+	 * Receive stage, as processMessage. Several receive threads may offer
+	 * messages at the same time, each one claims its own slot.
+	 *
+	 * @return false if the message has been dropped because the ring was
+	 *         full
+	 */
+	@SuppressWarnings("rawtypes")
+	public boolean offer(TransportMapping sourceTransport,
+			Address incomingAddress, ByteBuffer wholeMessage,
+			TransportStateReference tmStateReference) {
+		received.incrementAndGet();
+		RawTrapFilter rawFilter = this.rawFilter;
+		InformResponder responder = this.informResponder;
+		Verdict verdict = rawFilter == null ? Verdict.ACCEPT : rawFilter
+				.filter(incomingAddress, wholeMessage);
+		if (verdict == Verdict.REJECT
+				|| (verdict == Verdict.ACKNOWLEDGE_ONLY && responder == null)) {
+			prefiltered.incrementAndGet();
+			return true;
+		}
+		/*
+		 * v2c INFORMs are acknowledged from the raw message only when the raw
+		 * filter accepted their community, the others once decoded.
+		 */
+		long requestID = responder == null || rawFilter == null
+				|| !rawFilter.isCommunityRestricted() ? InformResponder.NOT_INFORM
+				: responder.parseRequestID(wholeMessage);
+		if (requestID != InformResponder.NOT_INFORM
+				&& verdict == Verdict.ACKNOWLEDGE_ONLY) {
+			// denied trap OID, acknowledged not to be retransmitted
+			responder.acknowledge(sourceTransport, incomingAddress,
+					wholeMessage, tmStateReference);
+			prefiltered.incrementAndGet();
+			return true;
+		}
+		long seq = ring.tryClaim();
+		if (seq < 0) {
+			if (overflowPolicy == OverflowPolicy.DROP) {
+				if (dropped.incrementAndGet() % 1000 == 1)
+					logger.warn("Trap ring full, " + dropped.get()
+							+ " traps dropped so far");
+				return false;
+			}
+			long start = System.nanoTime();
+			while ((seq = ring.tryClaim()) < 0 && running)
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			blockedNanos.addAndGet(System.nanoTime() - start);
+			if (seq < 0)
+				return false;
+		}
+
+		RawTrap raw = ring.get(seq);
+		raw.acknowledged = requestID != InformResponder.NOT_INFORM;
+		raw.acknowledgeOnly = verdict == Verdict.ACKNOWLEDGE_ONLY;
+		// acknowledged only once sure to be processed, a dropped INFORM
+		// will be retransmitted
+		if (raw.acknowledged) {
+			responder.acknowledge(sourceTransport, incomingAddress,
+					wholeMessage, tmStateReference);
+			if (responder.isDuplicate(incomingAddress, requestID)) {
+				// the slot is published empty, skipped by the consumers
+				raw.length = 0;
+				ring.publish(seq);
+				return true;
+			}
+		}
+		int length = wholeMessage.remaining();
+		if (raw.data.length < length)
+			raw.data = new byte[length];
+		wholeMessage.get(raw.data, 0, length);
+		raw.length = length;
+		raw.source = incomingAddress;
+		raw.transport = sourceTransport;
+		raw.tmStateReference = tmStateReference;
+		raw.receivedMillis = System.currentTimeMillis();
+		ring.publish(seq);
+		wakeUpConsumer();
+		return true;
+	}
+
+	/**
+	 * Unparks one of the idle consumers, if any.
+	 */
+	private void wakeUpConsumer() {
+		for (Consumer consumer : consumers)
+			if (consumer != null && consumer.parked) {
+				LockSupport.unpark(consumer.thread);
+				return;
+			}
+	}
+
+	/**
+	 * A consumer thread, with its own dispatcher so that the decoded traps
+	 * land in its own batch.
+	 */
+	private class Consumer implements Runnable, CommandResponder {
+
+		private final MessageDispatcherImpl dispatcher = new MessageDispatcherImpl();
+		private final List<Trap> batch = new ArrayList<Trap>();
+		private long receivedMillis;
+		private boolean acknowledged;
+		private boolean acknowledgeOnly;
+		volatile Thread thread;
+		volatile boolean parked;
+
+		Consumer() {
+			for (MessageProcessingModel model : models)
+				dispatcher.addMessageProcessingModel(model);
+			dispatcher.addCommandResponder(this);
+		}
+
+		public void run() {
+			int idle = 0;
+			long parkNanos = IDLE_PARK_NANOS;
+			while (running) {
+				int n = drain();
+				if (n == 0) {
+					// spin a little, then yield, then park longer and longer
+					if (++idle > 100) {
+						parked = true;
+						LockSupport.parkNanos(parkNanos);
+						parked = false;
+						parkNanos = Math.min(MAX_IDLE_PARK_NANOS, parkNanos * 2);
+					} else if (idle > 10)
+						Thread.yield();
+					continue;
+				}
+				idle = 0;
+				parkNanos = IDLE_PARK_NANOS;
+				dispatch();
+			}
+		}
+
+		/**
+		 * Decode stage: takes up to batchSize messages and decodes them,
+		 * each slot is released as soon as its message has been decoded.
+		 */
+		private int drain() {
+			int n = 0;
+			long seq;
+			TrapJournal journal = TrapPipeline.this.journal;
+			while (n < batchSize && (seq = ring.tryTake()) >= 0) {
+				RawTrap raw = ring.get(seq);
+				if (raw.length == 0) {
+					ring.release(seq);
+					continue;
+				}
+				try {
+					// journaled here, off the receive threads
+					if (journal != null)
+						journal.append(raw.receivedMillis, raw.source,
+								raw.data, raw.length);
+					receivedMillis = raw.receivedMillis;
+					acknowledged = raw.acknowledged;
+					acknowledgeOnly = raw.acknowledgeOnly;
+					dispatcher.processMessage(raw.transport, raw.source,
+							ByteBuffer.wrap(raw.data, 0, raw.length),
+							raw.tmStateReference);
+				} catch (RuntimeException e) {
+					decodeErrors.incrementAndGet();
+					logger.debug("Unable to decode trap from " + raw.source
+							+ " >> " + e);
+				} finally {
+					raw.source = null;
+					raw.transport = null;
+					raw.tmStateReference = null;
+					ring.release(seq);
+				}
+				n++;
+			}
+			return n;
+		}
+
+		/**
+		 * Called by the dispatcher, on this consumer thread, for each PDU
+		 * decoded.
+		 */
+		public void processPdu(CommandResponderEvent event) {
+			decoded.incrementAndGet();
+			event.setProcessed(true);
+			InformResponder responder = informResponder;
+			PDU pdu = event.getPDU();
+			if (responder != null && pdu.getType() == PDU.INFORM
+					&& !acknowledged) {
+				responder.acknowledge(event);
+				if (!acknowledgeOnly
+						&& responder.isDuplicate(event.getPeerAddress(), pdu
+								.getRequestID().getValue()))
+					return;
+			}
+			if (acknowledgeOnly) {
+				filtered.incrementAndGet();
+				return;
+			}
+			batch.add(new Trap(event.getPeerAddress(), event.getPDU(), event
+					.getSecurityModel(), new OctetString(event
+					.getSecurityName()), receivedMillis));
+		}
+
+		/**
+		 * Filter and dispatch stages.
+		 */
+		private void dispatch() {
+			if (batch.isEmpty())
+				return;
+			List<Trap> accepted = new ArrayList<Trap>(batch.size());
+			for (Trap trap : batch)
+				if (accept(trap))
+					accepted.add(trap);
+				else
+					filtered.incrementAndGet();
+			batch.clear();
+			if (accepted.isEmpty())
+				return;
+
+			batches.incrementAndGet();
+			for (TrapListener listener : listeners)
+				try {
+					listener.onTraps(accepted);
+				} catch (RuntimeException e) {
+					logger.error("Trap listener " + listener + " failed", e);
+				}
+			dispatched.addAndGet(accepted.size());
+		}
+
+		private boolean accept(Trap trap) {
+			for (TrapFilter filter : filters)
+				try {
+					if (!filter.accept(trap))
+						return false;
+				} catch (RuntimeException e) {
+					logger.error("Trap filter " + filter + " failed", e);
+					return false;
+				}
+			return true;
+		}
+	}
+
+	/**
+	 * @return number of messages received from the transport
+	 */
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	/**
+	 * @return number of messages dropped because the ring was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of messages discarded by the raw filter
+	 */
+	public long getPrefilteredCount() {
+		return prefiltered.get();
+	}
+
+	/**
+	 * @return total time the receive thread waited for a free slot, in millis
+	 */
+	public long getBlockedMillis() {
+		return blockedNanos.get() / 1000000;
+	}
+
+	/**
+	 * @return number of PDUs decoded
+	 */
+	public long getDecodedCount() {
+		return decoded.get();
+	}
+
+	/**
+	 * @return number of messages that could not be decoded
+	 */
+	public long getDecodeErrorsCount() {
+		return decodeErrors.get();
+	}
+
+	/**
+	 * @return number of traps discarded by the filters
+	 */
+	public long getFilteredCount() {
+		return filtered.get();
+	}
+
+	/**
+	 * @return number of traps handed to the listeners
+	 */
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+
+	/**
+	 * @return number of batches handed to the listeners
+	 */
+	public long getBatchesCount() {
+		return batches.get();
+	}
+
+	/**
+	 * @return number of messages waiting in the ring
+	 */
+	public int getBacklog() {
+		return ring.size();
+	}
+
+	/**
+	 * @return average number of traps received per second since creation
+	 */
+	public double getReceivedRate() {
+		long elapsed = Math.max(1, System.currentTimeMillis() - startMillis);
+		return received.get() * 1000.0 / elapsed;
+	}
+
+	public String toString() {
+		return "received = " + getReceivedCount() + " (" + (long) getReceivedRate()
+				+ " trap/s), prefiltered = " + getPrefilteredCount()
+				+ ", dropped = " + getDroppedCount() + ", blocked = "
+				+ getBlockedMillis() + " ms, decoded = " + getDecodedCount()
+				+ ", decode errors = " + getDecodeErrorsCount()
+				+ ", filtered = " + getFilteredCount() + ", dispatched = "
+				+ getDispatchedCount() + ", backlog = " + getBacklog();
+	}
+
+}
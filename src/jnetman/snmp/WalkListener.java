@@ -0,0 +1,26 @@
+package jnetman.snmp;
+
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Receives the variable bindings of a streaming walk page by page, one page
+ * per GETBULK response, in lexicographic order. The next request is sent
+ * only after onVariableBindings has returned, so a slow listener slows down
+ * the walk instead of piling up responses in memory.
+ *
+ * The listener is called on the thread that received the response: it
+ * should process the page quickly and never block waiting for other SNMP
+ * requests.
+ */
+public interface WalkListener {
+
+	/**
+	 * Called for each page of variable bindings of the subtree.
+	 *
+	 * @param vbs
+	 *            variable bindings of the page, never empty
+	 * @return true to continue the walk, false to stop it
+	 */
+	boolean onVariableBindings(VariableBinding[] vbs);
+
+}
@@ -0,0 +1,97 @@
+package jnetman.snmp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.snmp4j.smi.OID;
+
+/**
+ * Builds the split points of a partitioned walk (see
+ * SnmpClient.walkPartitioned). A sorted array of split points s1 < s2 < ...
+ * < sn divides the subtree in the disjoint ranges (root, s1], (s1, s2], ...,
+ * (sn, end of subtree], so that an OID equal to a split point, usually not
+ * an instance, belongs to the range that ends with it.
+ */
+public final class WalkPartitions {
+
+	private WalkPartitions() {
+	}
+
+	/**
+	 * One range per column of a table, e.g. byColumns(MIB.IfTableEntry, new
+	 * int[] {1, 2, ..., 22}) for the walk of MIB.IfTable.
+	 *
+	 * @param entry
+	 *            OID of the entry of the table
+	 * @param columns
+	 *            column numbers of the table
+	 * @return split points of the walk
+	 */
+	public static OID[] byColumns(OID entry, int[] columns) {
+		return byColumnsAndSubIdentifier(entry, columns, 0, 1);
+	}
+
+	/**
+	 * Splits the values of the sub-identifier following the passed prefix in
+	 * the given number of parts, e.g. bySubIdentifier(column, 255, 4) splits
+	 * an IP address indexed column on the first octet of the address.
+	 *
+	 * @param prefix
+	 *            OID preceding the sub-identifier to split on
+	 * @param maxValue
+	 *            highest expected value of the sub-identifier, larger values
+	 *            end up in the last range
+	 * @param parts
+	 *            number of ranges
+	 * @return split points of the walk
+	 */
+	public static OID[] bySubIdentifier(OID prefix, int maxValue, int parts) {
+		List<OID> splits = new ArrayList<OID>();
+		addSubIdentifierSplits(splits, prefix, maxValue, parts);
+		return splits.toArray(new OID[splits.size()]);
+	}
+
+	/**
+	 * Splits a table per column, then each column on the first sub-identifier
+	 * of its index.
+	 *
+	 * @param entry
+	 *            OID of the entry of the table
+	 * @param columns
+	 *            column numbers of the table
+	 * @param maxValue
+	 *            highest expected value of the first sub-identifier of the
+	 *            index
+	 * @param partsPerColumn
+	 *            number of ranges of each column
+	 * @return split points of the walk
+	 */
+	public static OID[] byColumnsAndSubIdentifier(OID entry, int[] columns,
+			int maxValue, int partsPerColumn) {
+		int[] sorted = columns.clone();
+		Arrays.sort(sorted);
+		List<OID> splits = new ArrayList<OID>();
+		for (int i = 0; i < sorted.length; i++) {
+			OID column = new OID(entry).append(sorted[i]);
+			// the range of the previous column ends where this one starts
+			if (i > 0)
+				splits.add(column);
+			addSubIdentifierSplits(splits, column, maxValue, partsPerColumn);
+		}
+		return splits.toArray(new OID[splits.size()]);
+	}
+
+	private static void addSubIdentifierSplits(List<OID> splits, OID prefix,
+			int maxValue, int parts) {
+		if (parts < 1)
+			throw new IllegalArgumentException("parts must be positive");
+		long step = ((long) maxValue + 1) / parts;
+		if (parts > 1 && step < 1)
+			throw new IllegalArgumentException("Too many parts for maxValue "
+					+ maxValue);
+		for (int k = 1; k < parts; k++)
+			splits.add(new OID(prefix).append((int) (k * step)));
+	}
+
+}